@@ -59,6 +59,8 @@ public class MainActivity extends Activity implements GpsPlaybackListener {
 
 	private EditText mEditTextDelay;
 
+	private EditText mEditTextRate;
+
 	private String filepath;
 
 	private String delayTimeOnReplay = "";
@@ -96,6 +98,13 @@ public class MainActivity extends Activity implements GpsPlaybackListener {
 				}
 			}
 		});
+
+		TextView mLabelEditTextRate = (TextView) findViewById(R.id.label_edit_text_rate);
+		mLabelEditTextRate.setText("Playback Rate (0.25 - 100x): ");
+		mLabelEditTextRate.setTextSize(17);
+		mLabelEditTextRate.setTextColor(Color.WHITE);
+
+		mEditTextRate = (EditText) findViewById(R.id.editTextRate);
 	}
 
 	@Override
@@ -164,6 +173,18 @@ public class MainActivity extends Activity implements GpsPlaybackListener {
 		stopPlaybackService();
 	}
 
+	public void onClickPause(View view) {
+		try {
+			if (service != null) {
+				if (state == PlaybackService.PAUSED)
+					service.resume();
+				else
+					service.pause();
+			}
+		} catch (RemoteException e) {
+		}
+	}
+
 	/**
 	 * Opens the file manager to select a file to open.
 	 */
@@ -209,9 +230,26 @@ public class MainActivity extends Activity implements GpsPlaybackListener {
 		}
 
 
+		float rate = 1f;
+		String rateText = mEditTextRate.getText().toString().trim();
+		if (rateText.length() > 0) {
+			try {
+				rate = Float.parseFloat(rateText);
+			} catch (NumberFormatException e) {
+				Toast.makeText(this, "Invalid playback rate", Toast.LENGTH_SHORT).show();
+				return;
+			}
+		}
+
+		if (rate < PlaybackClock.MIN_RATE || rate > PlaybackClock.MAX_RATE) {
+			Toast.makeText(this, "Playback rate must be between " + PlaybackClock.MIN_RATE
+					+ " and " + PlaybackClock.MAX_RATE, Toast.LENGTH_SHORT).show();
+			return;
+		}
+
 		try {
 			if (service != null) {
-				service.startService(filepath);
+				service.startService(filepath, rate);
 			}
 
 		} catch (RemoteException e) {
@@ -243,15 +281,25 @@ public class MainActivity extends Activity implements GpsPlaybackListener {
 			public void run() {
 				Button start = (Button) findViewById(R.id.start);
 				Button stop = (Button) findViewById(R.id.stop);
+				Button pause = (Button) findViewById(R.id.pause);
 
 				switch (state) {
 					case PlaybackService.RUNNING:
 						start.setEnabled(false);
 						stop.setEnabled(true);
+						pause.setEnabled(true);
+						pause.setText("Pause Playback");
+						break;
+					case PlaybackService.PAUSED:
+						start.setEnabled(false);
+						stop.setEnabled(true);
+						pause.setEnabled(true);
+						pause.setText("Resume Playback");
 						break;
 					case PlaybackService.STOPPED:
 						start.setEnabled(true);
 						stop.setEnabled(false);
+						pause.setEnabled(false);
 						break;
 				}
 
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android;
+
+/**
+ * Maps track time (ms, as in the GPX timestamps) to System.nanoTime() at a
+ * playback rate. The mapping is an immutable value swapped on change, so
+ * the emitter reads it without locking and a rate change simply rebases
+ * it at the current position.
+ *
+ * While paused the clock stands still at the moment of the pause, resuming
+ * moves the mapping by the paused duration.
+ */
+public class PlaybackClock {
+
+    public static final float MIN_RATE = 0.25f;
+    public static final float MAX_RATE = 100f;
+
+    private static final class Mapping {
+
+        // Track time at wallOrigin
+        final long trackOrigin;
+        final long wallOrigin;
+        final double nanosPerTrackMilli;
+        final float rate;
+
+        Mapping(long trackOrigin, long wallOrigin, float rate) {
+            this.trackOrigin = trackOrigin;
+            this.wallOrigin = wallOrigin;
+            this.rate = rate;
+            this.nanosPerTrackMilli = 1000000.0 / rate;
+        }
+
+        long toNanos(long trackTime) {
+            return wallOrigin + (long) ((trackTime - trackOrigin) * nanosPerTrackMilli);
+        }
+
+        long trackTimeAt(long nanos) {
+            return trackOrigin + (long) ((nanos - wallOrigin) / nanosPerTrackMilli);
+        }
+    }
+
+    private volatile float rate = 1f;
+
+    // Null until the first timed point starts the clock
+    private volatile Mapping mapping;
+
+    // System.nanoTime() of the pause, only meaningful while paused
+    private long pausedAt;
+    private volatile boolean paused;
+
+    // Time spent paused since the last reset
+    private volatile long pausedNanos;
+
+    public static float clampRate(float rate) {
+        if (Float.isNaN(rate))
+            return 1f;
+        return Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+    }
+
+    public float getRate() {
+        return rate;
+    }
+
+    /**
+     * Changes the rate, keeping the current track position.
+     */
+    public synchronized void setRate(float rate) {
+        rate = clampRate(rate);
+        Mapping current = mapping;
+        if (current != null) {
+            long now = paused ? pausedAt : System.nanoTime();
+            mapping = new Mapping(current.trackTimeAt(now), now, rate);
+        }
+        this.rate = rate;
+    }
+
+    public boolean isStarted() {
+        return mapping != null;
+    }
+
+    /**
+     * Makes the given track time correspond to now.
+     */
+    public synchronized void start(long trackTime) {
+        mapping = new Mapping(trackTime, paused ? pausedAt : System.nanoTime(), rate);
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized void pause() {
+        if (paused)
+            return;
+        pausedAt = System.nanoTime();
+        paused = true;
+    }
+
+    public synchronized void resume() {
+        if (!paused)
+            return;
+        long duration = System.nanoTime() - pausedAt;
+        Mapping current = mapping;
+        if (current != null)
+            mapping = new Mapping(current.trackOrigin, current.wallOrigin + duration, current.rate);
+        pausedNanos += duration;
+        paused = false;
+    }
+
+    /**
+     * Total time spent paused, deadlines taken from System.nanoTime()
+     * before a pause move by the growth of this value.
+     */
+    public long getPausedNanos() {
+        return pausedNanos;
+    }
+
+    /**
+     * Forgets the position and any pause, the rate is kept.
+     */
+    public synchronized void reset() {
+        mapping = null;
+        paused = false;
+        pausedNanos = 0;
+    }
+
+    /**
+     * System.nanoTime() at which the track time is reached. The clock must
+     * be started.
+     */
+    public long toNanos(long trackTime) {
+        return mapping.toNanos(trackTime);
+    }
+
+}
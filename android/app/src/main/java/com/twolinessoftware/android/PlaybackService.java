@@ -30,20 +30,21 @@ import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
-import com.twolinessoftware.android.framework.service.comms.gpx.GpxSaxParser;
+import com.twolinessoftware.android.framework.service.comms.gpx.GpxMappedParser;
+import com.twolinessoftware.android.framework.service.comms.gpx.GpxParallelParser;
 import com.twolinessoftware.android.framework.service.comms.gpx.GpxSaxParserListener;
 import com.twolinessoftware.android.framework.service.comms.gpx.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackDiskCache;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackFile;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackKinematics;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackMemoryCache;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackSanitizer;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackStore;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackStoreWriter;
 import com.twolinessoftware.android.framework.util.Logger;
-import com.vividsolutions.jts.geom.Coordinate;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
+import java.io.IOException;
 
 public class PlaybackService extends Service implements GpxSaxParserListener {
 
@@ -55,22 +56,45 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
 
     private static final int NOTIFICATION = 1;
 
-    private ArrayList<GpxTrackPoint> pointList = new ArrayList<GpxTrackPoint>();
+    private TrackStore track = new TrackStore();
 
-    public static final boolean CONTINUOUS = true;
+    public static final int REPEAT_OFF = SendLocationWorkerQueue.REPEAT_OFF;
+    public static final int REPEAT_LOOP = SendLocationWorkerQueue.REPEAT_LOOP;
+    public static final int REPEAT_PING_PONG = SendLocationWorkerQueue.REPEAT_PING_PONG;
+
+    public static final int INTERPOLATE_OFF = SendLocationWorkerQueue.INTERPOLATE_OFF;
+    public static final int INTERPOLATE_LINEAR = SendLocationWorkerQueue.INTERPOLATE_LINEAR;
+    public static final int INTERPOLATE_GREAT_CIRCLE = SendLocationWorkerQueue.INTERPOLATE_GREAT_CIRCLE;
 
     public static final int RUNNING = 0;
     public static final int STOPPED = 1;
+    public static final int PAUSED = 2;
 
     private static final String PROVIDER_NAME = LocationManager.GPS_PROVIDER;
 
-    private GpxTrackPoint lastPoint;
+    // Below this the first points play sooner when streamed than parsed in parallel
+    private static final long PARALLEL_PARSE_MIN_BYTES = 8L * 1024 * 1024;
+
+    private static final String TRACK_CACHE_DIR = "tracks";
+
+    // Default budget, can be changed with the trackCacheBytes extra
+    private static final long TRACK_CACHE_BYTES = 64L * 1024 * 1024;
+
+    // About 20 MB of point data
+    private static final int RECENT_TRACK_POINTS = 500000;
+
+    // Points put back in time order over this many, and the speed in m/s
+    // above which an isolated point is dropped as a spike
+    private static final int SANITIZE_WINDOW = 8;
+    private static final double SANITIZE_MAX_SPEED = 340;
 
     private final IPlaybackService.Stub mBinder = new IPlaybackService.Stub() {
 
 
         @Override
-        public void startService(String file) throws RemoteException {
+        public void startService(String file, float rate) throws RemoteException {
+
+            queue.setPlaybackRate(rate);
 
             broadcastStateChange(RUNNING);
 
@@ -93,18 +117,98 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
             stopSelf();
         }
 
+        @Override
+        public void pause() throws RemoteException {
+            if (state != RUNNING)
+                return;
+
+            queue.pause();
+
+            broadcastStateChange(PAUSED);
+        }
+
+        @Override
+        public void resume() throws RemoteException {
+            if (state != PAUSED)
+                return;
+
+            queue.resume();
+
+            broadcastStateChange(RUNNING);
+        }
+
+        @Override
+        public void setPlaybackRate(float rate) throws RemoteException {
+            queue.setPlaybackRate(rate);
+        }
+
         @Override
         public int getState() throws RemoteException {
             return state;
         }
 
-    };
+        @Override
+        public String getCacheStats() throws RemoteException {
+            return trackCache.toString();
+        }
 
-    private LocationManager mLocationManager;
+        @Override
+        public String getTimingStats() throws RemoteException {
+            return queue.getLateness() + " gaps=" + queue.getCompressedGaps()
+                    + " saved=" + queue.getSavedMillis() + "ms laps=" + queue.getLaps()
+                    + " simplified=" + queue.getSimplifiedPoints()
+                    + " deviation=" + String.format("%.2f", queue.getSimplificationDeviation()) + "m"
+                    + (sanitizer != null ? " " + sanitizer : "");
+        }
+
+        @Override
+        public void setRepeatMode(int mode) throws RemoteException {
+            queue.setRepeatMode(mode);
+        }
+
+        @Override
+        public void setInterpolation(int mode, float hz) throws RemoteException {
+            queue.setInterpolation(mode, hz);
+        }
+
+        @Override
+        public void setSimplification(double metres, long maxTimeGap) throws RemoteException {
+            queue.setSimplification(metres, maxTimeGap);
+        }
+
+        @Override
+        public void setSmoothing(float alpha, float beta, float minDisplacement) throws RemoteException {
+            queue.setSmoothing(alpha, beta, minDisplacement);
+        }
+
+        @Override
+        public void setMaxGap(long millis) throws RemoteException {
+            queue.setMaxGap(millis);
+        }
+
+        @Override
+        public int seekToTime(long millis) throws RemoteException {
+            return queue.seekToTime(millis);
+        }
 
-    private long startTimeOffset;
+        @Override
+        public int seekToFraction(float fraction) throws RemoteException {
+            return queue.seekToFraction(fraction);
+        }
 
-    private long firstGpsTime;
+        @Override
+        public int seekToIndex(int index) throws RemoteException {
+            return queue.seekToIndex(index);
+        }
+
+        @Override
+        public boolean convertTrack(String gpxPath, String trackPath) throws RemoteException {
+            return convertGpxFile(new File(gpxPath), new File(trackPath));
+        }
+
+    };
+
+    private LocationManager mLocationManager;
 
     private int state;
 
@@ -114,6 +218,16 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
 
     private ReadFileTask task;
 
+    private TrackDiskCache trackCache;
+
+    // Repairs of the current track, null if it was not parsed
+    private volatile TrackSanitizer sanitizer;
+
+    // Outlives the service, which is destroyed on every stop
+    private static final TrackMemoryCache recentTracks = new TrackMemoryCache(RECENT_TRACK_POINTS);
+
+    private volatile boolean parseFailed;
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -126,7 +240,9 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
 
         mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 
-        queue = new SendLocationWorkerQueue();
+        queue = new SendLocationWorkerQueue(mLocationManager, PROVIDER_NAME);
+
+        trackCache = new TrackDiskCache(new File(getCacheDir(), TRACK_CACHE_DIR), TRACK_CACHE_BYTES);
 
         broadcastStateChange(STOPPED);
 
@@ -148,9 +264,34 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
             // suppress npe if delay time not available.
         }
 
+        long delayTimeOnReplay = 0;
         if (timeFromIntent != null && !"".equalsIgnoreCase(timeFromIntent)) {
-            long delayTimeOnReplay = Long.valueOf(timeFromIntent);
-            queue.start(delayTimeOnReplay);
+            delayTimeOnReplay = Long.valueOf(timeFromIntent);
+        }
+        if (intent != null && intent.hasExtra("maxGapSeconds")) {
+            queue.setMaxGap(intent.getLongExtra("maxGapSeconds", 0) * 1000);
+        }
+        if (intent != null && intent.hasExtra("repeatMode")) {
+            queue.setRepeatMode(intent.getIntExtra("repeatMode", REPEAT_OFF));
+        }
+        if (intent != null && intent.hasExtra("simplifyMetres")) {
+            queue.setSimplification(intent.getFloatExtra("simplifyMetres", 0),
+                    intent.getLongExtra("simplifyMaxGapSeconds", 0) * 1000);
+        }
+        if (intent != null && intent.hasExtra("smoothingAlpha")) {
+            queue.setSmoothing(intent.getFloatExtra("smoothingAlpha", 0),
+                    intent.getFloatExtra("smoothingBeta", 0),
+                    intent.getFloatExtra("smoothingMinDisplacement", 0));
+        }
+        if (intent != null && intent.hasExtra("interpolationHz")) {
+            queue.setInterpolation(intent.getIntExtra("interpolation", INTERPOLATE_LINEAR),
+                    intent.getFloatExtra("interpolationHz", 0));
+        }
+
+        queue.start(delayTimeOnReplay);
+
+        if (intent != null && intent.hasExtra("trackCacheBytes")) {
+            trackCache.setBudget(intent.getLongExtra("trackCacheBytes", TRACK_CACHE_BYTES));
         }
 
         // We want this service to continue running until it is explicitly
@@ -158,6 +299,24 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
         return START_STICKY;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            recentTracks.clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            recentTracks.trimToSize(recentTracks.getMaxPoints() / 2);
+        }
+        Logger.i(LOG, "Trimmed recent tracks for level " + level + ", " + recentTracks);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        recentTracks.clear();
+    }
+
     @Override
     public void onDestroy() {
         Log.d(LOG, "Stopping Playback Service");
@@ -191,9 +350,132 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
     }
 
 
-    private void queueGpxPositions(String xml) {
-        GpxSaxParser parser = new GpxSaxParser(this);
-        parser.parse(xml);
+    private void queueGpxPositions(File file) {
+        // Only a parse repairs, a track from a cache or track file has no counts
+        sanitizer = null;
+
+        String memoryKey = TrackMemoryCache.keyOf(file);
+
+        TrackStore recent = recentTracks.get(memoryKey);
+        if (recent != null) {
+            Logger.i(LOG, "Replaying " + file + " from memory, " + recentTracks);
+            queueTrack(recent);
+            queue.endOfTrack();
+            return;
+        }
+
+        if (loadTrack(file))
+            recentTracks.put(memoryKey, track);
+
+        // After a failed parse too, no more points come and the feeder has
+        // to finish the last simplified chunk of those that did
+        queue.endOfTrack();
+    }
+
+    /**
+     * Loads and queues the track, returns false if that failed.
+     */
+    private boolean loadTrack(File file) {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        if (TrackFile.isTrackFile(file)) {
+            try {
+                queueTrack(TrackFile.read(file));
+                return true;
+            } catch (IOException e) {
+                broadcastError(e.getMessage());
+                return false;
+            }
+        }
+
+        TrackDiskCache.Key key = null;
+        try {
+            key = TrackDiskCache.Key.of(file);
+            TrackStore cached = trackCache.get(key);
+            if (cached != null) {
+                Logger.i(LOG, "Loaded " + file + " from cache, " + trackCache);
+                queueTrack(cached);
+                return true;
+            }
+        } catch (IOException e) {
+            Logger.w(LOG, "Unable to look up " + file + " in cache: " + e.getMessage());
+        }
+
+        long parseStart = System.currentTimeMillis();
+        parseFailed = false;
+
+        if (cores > 1 && file.length() >= PARALLEL_PARSE_MIN_BYTES) {
+            // Parse everything up front on all cores, then queue in one go
+            TrackStore parsed = new GpxParallelParser(this, cores).parse(file);
+            if (parsed == null)
+                return false;
+
+            TrackStoreWriter writer = new TrackStoreWriter(new TrackStore(parsed.size()), this);
+            sanitizer = new TrackSanitizer(writer, SANITIZE_WINDOW, SANITIZE_MAX_SPEED);
+            sanitizer.replay(parsed);
+            parsed = writer.getStore();
+
+            TrackKinematics.compute(parsed, 0, parsed.size());
+            queueTrack(parsed);
+        } else {
+            queue.play(track);
+
+            sanitizer = new TrackSanitizer(this, SANITIZE_WINDOW, SANITIZE_MAX_SPEED);
+            GpxMappedParser parser = new GpxMappedParser(sanitizer);
+            parser.parse(file);
+        }
+
+        if (parseFailed)
+            return false;
+
+        Logger.i(LOG, "Repaired " + file + ": " + sanitizer);
+
+        if (key != null)
+            trackCache.put(key, track, System.currentTimeMillis() - parseStart);
+        return true;
+    }
+
+    /**
+     * Writes the GPX file as a track file, repaired and with heading and
+     * speed worked out as when it is played. Returns false if that failed.
+     */
+    private boolean convertGpxFile(File gpx, File out) {
+        // Not this service as listener, a failed conversion must not fail
+        // a track being loaded
+        GpxSaxParserListener errors = new GpxSaxParserListener() {
+            @Override
+            public void onGpxPoint(GpxTrackPoint item) {
+            }
+
+            @Override
+            public void onGpxError(String message) {
+                broadcastError(message);
+            }
+
+            @Override
+            public void onGpxStart() {
+            }
+
+            @Override
+            public void onGpxEnd() {
+            }
+        };
+
+        try {
+            TrackSanitizer repairs = TrackFile.convert(gpx, out, SANITIZE_WINDOW, SANITIZE_MAX_SPEED, errors);
+            if (repairs == null)
+                return false;
+            Logger.i(LOG, "Converted " + gpx + " to " + out + ": " + repairs);
+            return true;
+        } catch (IOException e) {
+            broadcastError(e.getMessage());
+            return false;
+        }
+    }
+
+    private void queueTrack(TrackStore loaded) {
+        track = loaded;
+        queue.play(loaded);
     }
 
     private void onGpsPlaybackStopped() {
@@ -258,36 +540,9 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
         mNM.notify(NOTIFICATION, notification);
     }
 
-    private String loadFile(String file) {
-
-        try {
-            File f = new File(file);
-
-            FileInputStream fileIS = new FileInputStream(f);
-
-            BufferedReader buf = new BufferedReader(new InputStreamReader(fileIS));
-
-            String readString = new String();
-
-            StringBuffer xml = new StringBuffer();
-            while ((readString = buf.readLine()) != null) {
-                xml.append(readString);
-            }
-
-            Logger.d(LOG, "Finished reading in file");
-
-            return xml.toString();
-
-        } catch (Exception e) {
-            broadcastError("Error in the GPX file, unable to read it");
-        }
-
-        return null;
-    }
-
-
     @Override
     public void onGpxError(String message) {
+        parseFailed = true;
         broadcastError(message);
     }
 
@@ -295,69 +550,12 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
     @Override
     public void onGpxPoint(GpxTrackPoint item) {
 
-        long delay = System.currentTimeMillis() + 2000; // ms until the point should be displayed
-
-        long gpsPointTime = 0;
-
-        // Calculate the delay
-        if (item.getTime() != null) {
-            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-
-            try {
-                Date gpsDate = format.parse(item.getTime());
-                gpsPointTime = gpsDate.getTime();
-            } catch (ParseException e) {
-                Log.e(LOG, "Unable to parse time:" + item.getTime());
-            }
-
-            if (firstGpsTime == 0)
-                firstGpsTime = gpsPointTime;
-
-
-            if (startTimeOffset == 0)
-                startTimeOffset = System.currentTimeMillis();
-
-
-            delay = (gpsPointTime - firstGpsTime) + startTimeOffset;
-        }
-
-        if (lastPoint != null) {
-            item.setHeading(calculateHeadingFromPreviousPoint(lastPoint, item));
-            item.setSpeed(calculateSpeedFromPreviousPoint(lastPoint, item));
-        } else {
-            item.setHeading(0.0);
-            item.setSpeed(15.0);
-        }
-
-        lastPoint = item;
-
-        pointList.add(item);
-        if (state == RUNNING) {
-            if (delay > 0) {
-                Log.d(LOG, "Sending Point in:" + (delay - System.currentTimeMillis()) + "ms");
-
-                SendLocationWorker worker = new SendLocationWorker(mLocationManager, item, PROVIDER_NAME, delay);
-                queue.addToQueue(worker);
-            } else {
-                Log.e(LOG, "Invalid Time at Point:" + gpsPointTime + " delay from current time:" + delay);
-            }
-        }
-
-    }
-
-    private double calculateHeadingFromPreviousPoint(GpxTrackPoint currentPoint, GpxTrackPoint lastPoint) {
-
-        double angleBetweenPoints = Math.atan2((lastPoint.getLon() - currentPoint.getLon()), (lastPoint.getLat() - currentPoint.getLat()));
-        return Math.toDegrees(angleBetweenPoints);
-    }
-
-    private double calculateSpeedFromPreviousPoint(GpxTrackPoint currentPoint, GpxTrackPoint lastPoint) {
-
-        Coordinate startCoordinate = new Coordinate(lastPoint.getLon(), lastPoint.getLat());
-        Coordinate endCoordinate = new Coordinate(currentPoint.getLon(), currentPoint.getLat());
-        double distance = startCoordinate.distance(endCoordinate) * 100000;
-        return distance;
+        // Complete before the feeder can see it
+        int index = track.stage(item);
+        TrackKinematics.compute(track, index, index + 1);
+        track.publish();
 
+        queue.pointsAdded();
     }
 
     @Override
@@ -409,15 +607,19 @@ public class PlaybackService extends Service implements GpxSaxParserListener {
         protected Void doInBackground(Void... arg0) {
 
             // Reset the existing values
-            firstGpsTime = 0;
+            track = new TrackStore();
 
-            startTimeOffset = 0;
-
-            String xml = loadFile(file);
+            File f = new File(file);
+            if (!f.canRead()) {
+                broadcastError("Error in the GPX file, unable to read it");
+                return null;
+            }
 
             publishProgress(1);
 
-            queueGpxPositions(xml);
+            queueGpxPositions(f);
+
+            Logger.d(LOG, "Finished reading in file");
 
             return null;
         }
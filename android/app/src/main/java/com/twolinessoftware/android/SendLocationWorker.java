@@ -17,84 +17,202 @@ package com.twolinessoftware.android;
 
 import android.location.Location;
 import android.location.LocationManager;
-import android.util.Log;
+import android.os.Build;
+import android.os.SystemClock;
 
 import com.twolinessoftware.android.framework.service.comms.Worker;
-import com.twolinessoftware.android.framework.service.comms.gpx.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackInterpolator;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackStore;
 
 import java.lang.reflect.Method;
-import java.text.SimpleDateFormat;
-import java.text.ParseException;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
 
 public class SendLocationWorker extends Worker {
 
-	private GpxTrackPoint point;
+	// Hidden API, looked up once
+	private static final Method MAKE_COMPLETE = findMakeComplete();
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	// Reused for every point the worker sends
+	private final Location location;
+
+	private TrackStore track;
+	private int index;
 	private String providerName;
 	private LocationManager mLocationManager;
 
-	private long sendTime;
+	// Track time the point is played at, GpxTime.INVALID if it has none
+	private long trackTime;
+
+	// System.nanoTime() at which a point without track time is due
+	private long deadline;
 
-	public long getSendTime() {
-		return sendTime;
+	// Track time cut out of the pause before this point
+	private long compressedGap;
+
+	public long getTrackTime() {
+		return trackTime;
 	}
 
-	public void setSendTime(long sendTime) {
-		this.sendTime = sendTime;
+	// Point and fraction of the way to it for an interpolated fix, -1 if the
+	// worker sends the point at index as it is
+	private int interpolateTo = -1;
+	private float fraction;
+	private int interpolation;
+	private final TrackInterpolator interpolator = new TrackInterpolator();
+
+	public void setInterpolation(int interpolation, int to, float fraction) {
+		this.interpolation = interpolation;
+		this.interpolateTo = to;
+		this.fraction = fraction;
 	}
 
-	public SendLocationWorker(LocationManager mLocationManager,
-			GpxTrackPoint point, String providerName, long localSendTime) {
-		super();
-		this.point = point;
-		this.providerName = providerName;
-		this.mLocationManager = mLocationManager;
-		this.sendTime = localSendTime;
+	// Filtered heading and speed to send instead of the track values
+	private boolean filtered;
+	private float filteredHeading;
+	private float filteredSpeed;
+
+	public void setKinematics(float heading, float speed) {
+		this.filtered = true;
+		this.filteredHeading = heading;
+		this.filteredSpeed = speed;
 	}
 
-	@Override
-	public void run() {
-		sendLocation(point);
+	// Whether the track is played backwards at this point
+	private boolean reverse;
+
+	public boolean isReverse() {
+		return reverse;
+	}
+
+	public void setReverse(boolean reverse) {
+		this.reverse = reverse;
+	}
+
+	// Seek generation the worker was queued in
+	private int generation;
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	public void setGeneration(int generation) {
+		this.generation = generation;
+	}
+
+	public long getCompressedGap() {
+		return compressedGap;
 	}
 
-	private void sendLocation(GpxTrackPoint point) {
+	public void setCompressedGap(long compressedGap) {
+		this.compressedGap = compressedGap;
+	}
 
-		Location loc = new Location(providerName);
-		loc.setLatitude(point.getLat());
-		loc.setLongitude(point.getLon());
+	public long getDeadline() {
+		return deadline;
+	}
 
-		loc.setTime(System.currentTimeMillis());
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public SendLocationWorker(LocationManager mLocationManager, String providerName) {
+		super();
+		this.providerName = providerName;
+		this.mLocationManager = mLocationManager;
+		this.location = new Location(providerName);
+	}
 
-        loc.setBearing((float) point.getHeading());
-        loc.setAccuracy(1.0f);
-        loc.setSpeed((float) point.getSpeed());
-        loc.setAltitude(100.0);
+	/**
+	 * Points the worker at another track point, workers are reused.
+	 */
+	public void set(TrackStore track, int index, long trackTime, long deadline) {
+		this.track = track;
+		this.index = index;
+		this.trackTime = trackTime;
+		this.deadline = deadline;
+		this.interpolateTo = -1;
+		this.filtered = false;
+	}
 
+	public int getIndex() {
+		return index;
+	}
 
-		// bk added
-		Method method;
+	private static Method findMakeComplete() {
 		try {
-			method = Location.class.getMethod("makeComplete", new Class[0]);
-			if (method != null)
-			{
-				try
-				{
-					method.invoke(loc, new Object[0]);
-				}
-				catch (Exception exception) { }
-			}
+			return Location.class.getMethod("makeComplete");
 		} catch (NoSuchMethodException e) {
-			e.printStackTrace();
+			return null;
 		}
+	}
 
+	/**
+	 * Builds the Location for the point ahead of time, run() only stamps
+	 * the time and sends it.
+	 */
+	public void prepare() {
+		Location loc = location;
+		float heading;
+		float speed;
+		double altitude;
+		float accuracy;
+		int recorded;
+		if (interpolateTo >= 0) {
+			interpolator.interpolate(interpolation, track, index, interpolateTo, fraction);
+			loc.setLatitude(interpolator.lat);
+			loc.setLongitude(interpolator.lon);
+			heading = interpolator.heading;
+			speed = interpolator.speed;
+			altitude = interpolator.ele;
+
+			// Heading, speed and accuracy are the segment's, elevation needs both ends
+			int segment = Math.max(index, interpolateTo);
+			recorded = track.getRecorded(segment);
+			if ((track.getRecorded(Math.min(index, interpolateTo)) & TrackStore.RECORDED_ELE) == 0)
+				recorded &= ~TrackStore.RECORDED_ELE;
+			accuracy = track.getAccuracy(segment);
+		} else {
+			loc.setLatitude(track.getLat(index));
+			loc.setLongitude(track.getLon(index));
+			heading = track.getHeading(index);
+			speed = track.getSpeed(index);
+			altitude = track.getEle(index);
+			accuracy = track.getAccuracy(index);
+			recorded = track.getRecorded(index);
+		}
 
-		Log.d("SendLocation", "Sending update for " + providerName);
-		mLocationManager.setTestProviderLocation(providerName, loc);
-
-
+		if (reverse)
+			heading = (heading + 180f) % 360f;
+
+		// Follows the actual direction of travel already, recorded values win
+		if (filtered && (recorded & TrackStore.RECORDED_HEADING) == 0)
+			heading = filteredHeading;
+		if (filtered && (recorded & TrackStore.RECORDED_SPEED) == 0)
+			speed = filteredSpeed;
+
+		loc.setBearing(heading);
+		loc.setSpeed(speed);
+		loc.setAccuracy((recorded & TrackStore.RECORDED_ACCURACY) != 0 ? accuracy : 1.0f);
+		loc.setAltitude((recorded & TrackStore.RECORDED_ELE) != 0 ? altitude : 100.0);
+
+		// bk added, fills in what mock locations need on newer releases
+		if (MAKE_COMPLETE != null) {
+			try {
+				MAKE_COMPLETE.invoke(loc, NO_ARGUMENTS);
+			} catch (Exception e) {
+			}
+		}
+	}
 
+	/**
+	 * Sends the prepared Location, stamped with the current time.
+	 */
+	@Override
+	public void run() {
+		location.setTime(System.currentTimeMillis());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+			location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+		mLocationManager.setTestProviderLocation(providerName, location);
 	}
 
 }
@@ -15,91 +15,786 @@
  */
 package com.twolinessoftware.android;
 
+import android.location.LocationManager;
+
+import com.twolinessoftware.android.framework.service.comms.gpx.GpxTime;
+import com.twolinessoftware.android.framework.service.comms.gpx.KinematicFilter;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackInterpolator;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackSimplifier;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackStore;
+import com.twolinessoftware.android.framework.service.comms.gpx.TrackTimeIndex;
+import com.twolinessoftware.android.framework.util.LatenessHistogram;
 import com.twolinessoftware.android.framework.util.Logger;
+import com.twolinessoftware.android.framework.util.SlotRing;
 
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Plays a track back as test provider locations. A feeder thread follows
+ * the track as the parser appends to it, works out when each point is due
+ * and hands it to the emitter thread through a {@link SlotRing} of reusable
+ * workers. The feeder also builds the Location of each point, so all the
+ * emitter does when a point is due is stamp the time and send it. Both
+ * threads park while there is nothing to do, so neither the parser nor the
+ * ring ever blocks the other.
+ *
+ * Deadlines are absolute System.nanoTime() values derived from the track
+ * time through a {@link PlaybackClock}, so time spent sending never
+ * accumulates into drift. The emitter maps each point when it gets to it,
+ * which lets the playback rate change while points are queued. How late
+ * every point went out is recorded in a {@link LatenessHistogram}.
+ *
+ * The feeder schedules points on a time line of its own: each timed point
+ * plays the time since the previous one after it, with gaps longer than the
+ * maximum gap shortened to it. Repeating the track, forwards again or back
+ * and forth, simply carries on along that time line over the same points.
+ *
+ * With interpolation on, the feeder queues fixes between two timed points
+ * that are further apart than the target rate allows. A slot only names
+ * the two points and the fraction, so upsampling takes no memory beyond
+ * the ring.
+ *
+ * With simplification on, the feeder runs a {@link TrackSimplifier} ahead
+ * of itself and passes over the points it drops. A {@link KinematicFilter}
+ * can smooth heading and speed of the points played, as they are queued.
+ *
+ * A seek bumps a generation counter. The feeder continues at the new point
+ * and restarts the clock there, the emitter drops the slots of older
+ * generations still in the ring, so nothing is rebuilt.
+ */
 public class SendLocationWorkerQueue {
 
-    private LinkedList<SendLocationWorker> queue;
+    private static final String LOG = "SendLocationWorkerQueue";
+
+    public static final int REPEAT_OFF = 0;
+    public static final int REPEAT_LOOP = 1;
+    public static final int REPEAT_PING_PONG = 2;
+
+    public static final int INTERPOLATE_OFF = 0;
+    public static final int INTERPOLATE_LINEAR = TrackInterpolator.LINEAR;
+    public static final int INTERPOLATE_GREAT_CIRCLE = TrackInterpolator.GREAT_CIRCLE;
+
+    private static final int RING_SIZE = 256;
+
+    // Points without a timestamp are sent this long after being read
+    private static final long UNTIMED_POINT_DELAY = 2000 * 1000000L;
+
+    // Late points are sent back to back until the emitter is this far
+    // behind, beyond that a point is dropped if its successor is due too
+    private static final long CATCH_UP_LIMIT = 1000 * 1000000L;
+
+    // Track time between the last point of a lap and the first of the next
+    private static final long LAP_STEP = 1000;
+
+    private final LocationManager locationManager;
+    private final String providerName;
+
+    private volatile TrackStore track;
+
+    // Set once the track stops growing, only then can it be repeated
+    private volatile boolean trackComplete;
+    private volatile int repeatMode = REPEAT_OFF;
+    private final AtomicLong laps = new AtomicLong();
+
+    private volatile int interpolation = INTERPOLATE_OFF;
+    private volatile float interpolationHz;
+
+    private volatile double simplifyTolerance;
+    private volatile long simplifyMaxGap;
+    private volatile TrackSimplifier simplifier;
+
+    private volatile float smoothingAlpha;
+    private volatile float smoothingBeta;
+    private volatile float smoothingMinDisplacement;
     private boolean running;
-    private WorkerThread thread;
+    private long minTimeBetweenSends;
 
-    private Object lock = new Object();
+    private volatile FeederThread feeder;
+    private volatile EmitterThread emitter;
 
-    public SendLocationWorkerQueue() {
-        queue = new LinkedList<SendLocationWorker>();
-        running = false;
-    }
+    private final PlaybackClock clock = new PlaybackClock();
 
+    private final LatenessHistogram lateness = new LatenessHistogram();
 
-    public void addToQueue(SendLocationWorker worker) {
-        synchronized (queue) {
-            queue.addLast(worker);
-        }
+    // Longest pause between two points that is played in full, 0 for no limit
+    private volatile long maxGap;
 
+    // Seek requests, the index is written before the generation
+    private TrackTimeIndex timeIndex;
+    private volatile int seekIndex;
+    private volatile int seekGeneration;
+
+    private final AtomicLong compressedGaps = new AtomicLong();
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    public SendLocationWorkerQueue(LocationManager locationManager, String providerName) {
+        this.locationManager = locationManager;
+        this.providerName = providerName;
     }
 
+    /**
+     * @param delayTimeOnReplay minimum time between two sends in ms, 0 to
+     *                          follow the track timestamps only
+     */
     public synchronized void start(long delayTimeOnReplay) {
+        minTimeBetweenSends = Math.max(0, delayTimeOnReplay);
         running = true;
-        thread = new WorkerThread(delayTimeOnReplay);
-        thread.start();
+        restart();
+    }
+
+    /**
+     * Plays the track from its first point. The track may still be filled
+     * by the parser, call {@link #pointsAdded()} after appending.
+     */
+    public synchronized void play(TrackStore track) {
+        this.track = track;
+        trackComplete = false;
+        timeIndex = track == null ? null : new TrackTimeIndex(track);
+        if (running)
+            restart();
+    }
+
+    /**
+     * Tells the feeder that the track is complete and may be repeated.
+     */
+    public void endOfTrack() {
+        trackComplete = true;
+        pointsAdded();
+    }
+
+    /**
+     * Tells the feeder that the track grew.
+     */
+    public void pointsAdded() {
+        FeederThread current = feeder;
+        if (current != null && current.waiting)
+            LockSupport.unpark(current);
+    }
+
+    /**
+     * Sets the playback rate, 1 is real time. Takes effect immediately,
+     * also for points already queued.
+     */
+    public void setPlaybackRate(float rate) {
+        clock.setRate(rate);
+
+        EmitterThread current = emitter;
+        if (current != null)
+            LockSupport.unpark(current);
+    }
+
+    public float getPlaybackRate() {
+        return clock.getRate();
+    }
+
+    /**
+     * What happens at the end of the track: {@link #REPEAT_OFF},
+     * {@link #REPEAT_LOOP} from the first point again, or
+     * {@link #REPEAT_PING_PONG} back to the first point and forth again.
+     */
+    public void setRepeatMode(int mode) {
+        repeatMode = mode;
+        pointsAdded();
+    }
+
+    public int getRepeatMode() {
+        return repeatMode;
+    }
+
+    /**
+     * Fills in fixes between points so at least the given number per second
+     * are sent, {@link #INTERPOLATE_LINEAR} in latitude and longitude or
+     * {@link #INTERPOLATE_GREAT_CIRCLE}. Applies to points not yet queued.
+     */
+    public void setInterpolation(int mode, float hz) {
+        interpolationHz = hz;
+        interpolation = hz > 0 ? mode : INTERPOLATE_OFF;
+    }
+
+    public int getInterpolation() {
+        return interpolation;
+    }
+
+    /**
+     * Drops points that are less than the tolerance in metres off the track
+     * without leaving more than maxTimeGap ms between the points played, 0
+     * for no limit. A tolerance of 0 plays every point. Applies from the
+     * next track played.
+     */
+    public void setSimplification(double tolerance, long maxTimeGap) {
+        simplifyTolerance = tolerance;
+        simplifyMaxGap = maxTimeGap;
+    }
+
+    /**
+     * Smooths heading and speed with an alpha-beta filter, the heading only
+     * changes after moving minDisplacement metres. An alpha of 0 sends the
+     * values of the track. Alpha is clamped to 0 - 1 and beta to 0 - 2, the
+     * range the filter is stable in. Applies from the next track played.
+     */
+    public void setSmoothing(float alpha, float beta, float minDisplacement) {
+        smoothingAlpha = clamp(alpha, KinematicFilter.MAX_ALPHA);
+        smoothingBeta = clamp(beta, KinematicFilter.MAX_BETA);
+        smoothingMinDisplacement = clamp(minDisplacement, Float.MAX_VALUE);
+    }
+
+    /**
+     * Limits the value to 0 - max, NaN is taken as 0.
+     */
+    private static float clamp(float value, float max) {
+        if (!(value > 0))
+            return 0f;
+        return Math.min(max, value);
+    }
+
+    /**
+     * Number of points simplification dropped from the current track.
+     */
+    public int getSimplifiedPoints() {
+        TrackSimplifier current = simplifier;
+        return current == null ? 0 : current.getDropped();
+    }
+
+    /**
+     * Largest distance in metres of a dropped point from the track played.
+     */
+    public double getSimplificationDeviation() {
+        TrackSimplifier current = simplifier;
+        return current == null ? 0 : current.getMaxDeviation();
+    }
+
+    /**
+     * Number of times the track was started again since it was played.
+     */
+    public long getLaps() {
+        return laps.get();
+    }
+
+    /**
+     * Pauses in the track longer than this many ms are shortened to it,
+     * 0 plays every pause in full. Applies to points not yet queued.
+     */
+    public void setMaxGap(long maxGap) {
+        this.maxGap = Math.max(0, maxGap);
+    }
+
+    public long getMaxGap() {
+        return maxGap;
+    }
+
+    /**
+     * Number of pauses shortened since the track was started.
+     */
+    public long getCompressedGaps() {
+        return compressedGaps.get();
+    }
+
+    /**
+     * Wall time saved by shortening pauses, at the rate they were played.
+     */
+    public long getSavedMillis() {
+        return savedNanos.get() / 1000000L;
+    }
+
+    /**
+     * Holds back all sends until {@link #resume()}. The track and the queued
+     * points are kept, and the schedule continues where it stopped.
+     */
+    public void pause() {
+        clock.pause();
+    }
+
+    public void resume() {
+        clock.resume();
+
+        EmitterThread current = emitter;
+        if (current != null)
+            LockSupport.unpark(current);
+    }
+
+    public boolean isPaused() {
+        return clock.isPaused();
+    }
+
+    /**
+     * Continues playback at the given point, limited to the points parsed
+     * so far. Returns the point index, or -1 if there are no points.
+     */
+    public synchronized int seekToIndex(int index) {
+        if (track == null || track.size() == 0)
+            return -1;
+
+        seekIndex = Math.max(0, Math.min(index, track.size() - 1));
+        seekGeneration++;
+
+        FeederThread currentFeeder = feeder;
+        EmitterThread currentEmitter = emitter;
+        if (currentFeeder != null) {
+            LockSupport.unpark(currentFeeder);
+            LockSupport.unpark(currentEmitter);
+        }
+        return seekIndex;
+    }
+
+    /**
+     * Continues playback at the first point the given number of ms after
+     * the start of the track.
+     */
+    public synchronized int seekToTime(long offset) {
+        if (track == null)
+            return -1;
+
+        timeIndex.update();
+        if (!timeIndex.hasTimes())
+            return seekToIndex(0);
+        return seekToIndex(pointAt(timeIndex.getFirstTime() + offset));
+    }
+
+    /**
+     * Continues playback at a fraction of the track duration, or of its
+     * points if the track has no timestamps.
+     */
+    public synchronized int seekToFraction(float fraction) {
+        if (track == null)
+            return -1;
+
+        fraction = Math.max(0f, Math.min(1f, fraction));
+        timeIndex.update();
+        if (!timeIndex.hasTimes())
+            return seekToIndex((int) (fraction * track.size()));
+
+        long first = timeIndex.getFirstTime();
+        long last = timeIndex.getLastTime();
+        return seekToIndex(pointAt(first + (long) ((last - first) * (double) fraction)));
+    }
+
+    /**
+     * First point at or after the time, the last point if the track ends
+     * before it.
+     */
+    private int pointAt(long time) {
+        int index = timeIndex.indexAt(time);
+        return index >= 0 ? index : track.size() - 1;
+    }
+
+    /**
+     * Lateness of the points sent since the track was started.
+     */
+    public LatenessHistogram getLateness() {
+        return lateness;
     }
 
     public synchronized void stop() {
-        /*
-		 * synchronized(lock){ lock.notify(); }
-		 */
         running = false;
+        stopThreads();
     }
 
-    public void reset() {
+    public synchronized void reset() {
         stop();
-        queue = new LinkedList<SendLocationWorker>();
+        track = null;
+        clock.reset();
+    }
+
+    private void restart() {
+        stopThreads();
+
+        TrackStore current = track;
+        if (current == null)
+            return;
+
+        lateness.reset();
+        clock.reset();
+        seekIndex = 0;
+        seekGeneration++;
+        compressedGaps.set(0);
+        savedNanos.set(0);
+        laps.set(0);
+        simplifier = simplifyTolerance > 0
+                ? new TrackSimplifier(current, simplifyTolerance, simplifyMaxGap) : null;
+
+        SlotRing<SendLocationWorker> ring = new SlotRing<SendLocationWorker>(RING_SIZE,
+                new SlotRing.Factory<SendLocationWorker>() {
+                    @Override
+                    public SendLocationWorker create() {
+                        return new SendLocationWorker(locationManager, providerName);
+                    }
+                });
 
-        stopThread();
+        feeder = new FeederThread(current, simplifier, ring);
+        emitter = new EmitterThread(ring, minTimeBetweenSends);
+        feeder.emitter = emitter;
+        emitter.feeder = feeder;
+        feeder.start();
+        emitter.start();
     }
 
-    public void stopThread() {
-        if (thread != null) {
+    private void stopThreads() {
+        if (feeder != null) {
+            feeder.interrupt();
+            emitter.interrupt();
             try {
-                thread.interrupt();
-            } catch (Exception e) {
-                Logger.i("SendLocationWorkerQueue.stopThread() - exception", "" + e.getMessage());
+                feeder.join();
+                emitter.join();
+            } catch (InterruptedException e) {
+                Logger.i(LOG, "Interrupted while stopping playback threads");
+                Thread.currentThread().interrupt();
             }
-            this.thread = null;
+            feeder = null;
+            emitter = null;
         }
     }
 
-    private class WorkerThread extends Thread {
+    /**
+     * Parks the calling thread until unparked or interrupted. The flag tells
+     * the other side a wake up is needed, the condition is checked again
+     * after raising it so a wake up between check and park is not lost.
+     */
+    private abstract static class PlaybackThread extends Thread {
 
-        private long TIME_BETWEEN_SENDS = 1000; // milliseconds
+        volatile boolean waiting;
+
+        PlaybackThread(String name) {
+            super(name);
+        }
+
+        abstract boolean canProceed();
+
+        void await() {
+            waiting = true;
+            if (!canProceed())
+                LockSupport.park(this);
+            waiting = false;
+        }
 
-        WorkerThread(long delayTimeOnReplay) {
-            TIME_BETWEEN_SENDS = delayTimeOnReplay;
+        static void wake(PlaybackThread thread) {
+            if (thread.waiting)
+                LockSupport.unpark(thread);
         }
+    }
+
+    private class FeederThread extends PlaybackThread {
+
+        private final TrackStore track;
+        private final SlotRing<SendLocationWorker> ring;
+
+        // Null when every point is played
+        private final TrackSimplifier simplifier;
+
+        // Null when the track values are sent
+        private final KinematicFilter filter;
+        EmitterThread emitter;
+
+        private int next;
+        private int step = 1;
+        private int generation = seekGeneration;
 
+        // Set after a seek, the next timed point restarts the clock
+        private boolean restartClock = true;
+
+        // Last timed point read and the time it was scheduled at
+        private long lastGpsTime = GpxTime.INVALID;
+        private long lastPlayTime;
+        private int lastIndex;
+
+        // Set once the point at next is scheduled, it is queued after the
+        // interpolated fixes leading up to it
+        private boolean scheduled;
+        private long pointPlayTime;
+        private long pointCut;
+
+        // Interpolated fixes from segmentFrom to next, step segmentStep of
+        // segmentSteps is the next one to queue
+        private int segmentFrom;
+        private long segmentStart;
+        private long segmentLength;
+        private long segmentStep;
+        private long segmentSteps;
+
+        FeederThread(TrackStore track, TrackSimplifier simplifier, SlotRing<SendLocationWorker> ring) {
+            super("SendLocationFeeder");
+            this.track = track;
+            this.simplifier = simplifier;
+            this.ring = ring;
+            this.filter = smoothingAlpha > 0
+                    ? new KinematicFilter(smoothingAlpha, smoothingBeta, smoothingMinDisplacement) : null;
+        }
+
+        @Override
+        boolean canProceed() {
+            return generation != seekGeneration || ((hasNext() || canRepeat()) && ring.claim() != null);
+        }
+
+        /**
+         * Whether there is a point to play, moves next past dropped points.
+         */
+        private boolean hasNext() {
+            if (simplifier == null)
+                return step > 0 ? next < track.size() : next >= 0;
+
+            if (step < 0) {
+                while (next >= 0 && !simplifier.isKept(next))
+                    next--;
+                return next >= 0;
+            }
+
+            int decided = simplifier.update(trackComplete);
+            while (next < decided && !simplifier.isKept(next))
+                next++;
+            return next < decided;
+        }
+
+        private boolean canRepeat() {
+            return repeatMode != REPEAT_OFF && trackComplete && track.size() > 1;
+        }
+
+        /**
+         * Turns around or goes back to the first point at the end of a lap.
+         */
+        private void repeat() {
+            if (repeatMode == REPEAT_PING_PONG) {
+                step = -step;
+                next = step > 0 ? 1 : track.size() - 2;
+            } else {
+                step = 1;
+                next = 0;
+                lastGpsTime = GpxTime.INVALID;
+            }
+            laps.incrementAndGet();
+        }
+
+        @Override
         public void run() {
-            while (running) {
+            while (!isInterrupted()) {
+                if (generation != seekGeneration) {
+                    generation = seekGeneration;
+                    next = seekIndex;
+                    step = 1;
+                    restartClock = true;
+                    lastGpsTime = GpxTime.INVALID;
+                    scheduled = false;
+                    if (filter != null)
+                        filter.reset();
+                }
+
+                if (!hasNext() && canRepeat())
+                    repeat();
+
+                SendLocationWorker slot = hasNext() ? ring.claim() : null;
+                if (slot == null) {
+                    await();
+                    continue;
+                }
 
-                if (queue.size() > 0) {
+                long gpsPointTime = track.getTime(next);
+                if (gpsPointTime == GpxTime.INVALID) {
+                    // Stored without the pauses so far, see dueOf()
+                    slot.set(track, next, gpsPointTime, System.nanoTime() + UNTIMED_POINT_DELAY
+                            - clock.getPausedNanos());
+                    slot.setCompressedGap(0);
+                    slot.setGeneration(generation);
+                    if (filter != null) {
+                        filter(next, gpsPointTime);
+                        slot.setKinematics(filter.getHeading(), filter.getSpeed());
+                    }
+                } else {
+                    if (!scheduled)
+                        schedule(gpsPointTime);
 
-                    SendLocationWorker worker = queue.pop();
+                    if (segmentStep < segmentSteps) {
+                        long playTime = segmentStart
+                                + (long) ((double) segmentLength * segmentStep / segmentSteps);
+                        slot.set(track, segmentFrom, playTime, 0);
+                        slot.setInterpolation(interpolation, next, (float) segmentStep / segmentSteps);
+                        if (filter != null)
+                            slot.setKinematics(filter.getHeading(), filter.getSpeed());
+                        slot.setCompressedGap(0);
+                        slot.setGeneration(generation);
+                        slot.setReverse(step < 0);
+                        slot.prepare();
+                        ring.publish();
+                        segmentStep++;
 
-                    synchronized (lock) {
-                        try {
-                            lock.wait(TIME_BETWEEN_SENDS);
+                        wake(emitter);
+                        continue;
+                    }
 
-                            Logger.i("SendLocationWorkerQueue.running - TIME_BETWEEN_SENDS : " + TIME_BETWEEN_SENDS, " - sent at time : " + System.currentTimeMillis());
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                    // Everything is scheduled relative to the first timed point
+                    if (restartClock) {
+                        clock.start(pointPlayTime);
+                        restartClock = false;
                     }
+                    slot.set(track, next, pointPlayTime, 0);
+                    if (filter != null)
+                        slot.setKinematics(filter.getHeading(), filter.getSpeed());
+                    slot.setCompressedGap(pointCut);
+                    slot.setGeneration(generation);
+                    scheduled = false;
+                }
+                slot.setReverse(step < 0);
+                slot.prepare();
+                ring.publish();
+                next += step;
+
+                wake(emitter);
+            }
+        }
+
+        /**
+         * Works out when the point at next plays and which fixes to
+         * interpolate before it.
+         */
+        private void schedule(long gpsPointTime) {
+            boolean continued = lastGpsTime != GpxTime.INVALID;
+            long elapsed = LAP_STEP;
+            long cut = 0;
+            if (continued) {
+                elapsed = (gpsPointTime - lastGpsTime) * step;
+                cut = gapToCut(elapsed);
+            }
+            long previousPlayTime = lastPlayTime;
+            pointPlayTime = lastPlayTime + elapsed - cut;
+            pointCut = cut;
+            lastGpsTime = gpsPointTime;
+            lastPlayTime = pointPlayTime;
+
+            segmentStep = 0;
+            segmentSteps = 0;
+            float hz = interpolationHz;
+            if (continued && interpolation != INTERPOLATE_OFF && hz > 0) {
+                // Track time between fixes at the current rate
+                long spacing = Math.max(1, (long) (1000 * clock.getRate() / hz));
+                long length = pointPlayTime - previousPlayTime;
+                if (length > spacing) {
+                    segmentFrom = lastIndex;
+                    segmentStart = previousPlayTime;
+                    segmentLength = length;
+                    segmentSteps = (length + spacing - 1) / spacing;
+                    segmentStep = 1;
+                }
+            }
+            lastIndex = next;
+            scheduled = true;
+
+            if (filter != null) {
+                if (!continued)
+                    filter.reset();
+                filter(next, pointPlayTime);
+            }
+        }
+
+        /**
+         * Feeds the point to the filter, at the time it is played so that
+         * playing backwards and repeating keep the time running forward.
+         */
+        private void filter(int index, long time) {
+            float heading = track.getHeading(index);
+            filter.update(track.getLat(index), track.getLon(index), time,
+                    step < 0 ? (heading + 180f) % 360f : heading);
+        }
+
+        /**
+         * Track time to drop from the time since the previous point.
+         */
+        private long gapToCut(long elapsed) {
+            long limit = maxGap;
+            if (limit <= 0 || elapsed <= limit)
+                return 0;
+            return elapsed - limit;
+        }
+    }
+
+    private class EmitterThread extends PlaybackThread {
+
+        private final SlotRing<SendLocationWorker> ring;
+        private final long minTimeBetweenSends; // nanoseconds
+        FeederThread feeder;
+
+        EmitterThread(SlotRing<SendLocationWorker> ring, long minTimeBetweenSends) {
+            super("SendLocationWorker");
+            this.ring = ring;
+            this.minTimeBetweenSends = minTimeBetweenSends * 1000000L;
+        }
+
+        @Override
+        boolean canProceed() {
+            return !clock.isPaused() && ring.peek() != null;
+        }
+
+        @Override
+        public void run() {
+            int generation = seekGeneration;
+
+            // Scheduled time of the previous point, the spacing counts from there
+            long lastDue = 0;
+            boolean first = true;
+
+            while (!isInterrupted()) {
+                SendLocationWorker worker = clock.isPaused() ? null : ring.peek();
+                if (worker == null) {
+                    await();
+                    continue;
+                }
+
+                if (worker.getGeneration() != seekGeneration) {
+                    // Queued before a seek
+                    ring.release();
+                    wake(feeder);
+                    continue;
+                }
+
+                if (generation != worker.getGeneration()) {
+                    generation = worker.getGeneration();
+                    first = true;
+                }
+
+                long due = dueOf(worker);
+                if (!first && due - (lastDue + minTimeBetweenSends) < 0)
+                    due = lastDue + minTimeBetweenSends;
+
+                long now = System.nanoTime();
+                if (due - now > 0) {
+                    LockSupport.parkNanos(this, due - now);
+                    continue;
+                }
+
+                // A seek since the check above makes the slot stale, the next
+                // round drops it
+                if (worker.getGeneration() != seekGeneration)
+                    continue;
+
+                if (now - due > CATCH_UP_LIMIT && isDue(ring.peek(1), now)) {
+                    // Far behind and superseded, the next point is more current
+                    lateness.recordSkipped();
+                } else {
                     // Executing each worker in the current thread. Multiple threads NOT created.
                     worker.run();
+                    lateness.record(System.nanoTime() - due);
                 }
+
+                if (worker.getCompressedGap() > 0) {
+                    compressedGaps.incrementAndGet();
+                    savedNanos.addAndGet((long) (worker.getCompressedGap() * 1e6 / clock.getRate()));
+                }
+
+                lastDue = due;
+                first = false;
+
+                ring.release();
+                wake(feeder);
             }
         }
+
+        private long dueOf(SendLocationWorker worker) {
+            long trackTime = worker.getTrackTime();
+            if (trackTime == GpxTime.INVALID)
+                return worker.getDeadline() + clock.getPausedNanos();
+            return clock.toNanos(trackTime);
+        }
+
+        private boolean isDue(SendLocationWorker next, long now) {
+            return next != null && dueOf(next) - now <= 0;
+        }
     }
 
 }
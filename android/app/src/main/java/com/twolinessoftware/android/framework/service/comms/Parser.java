@@ -15,6 +15,10 @@
  */
 package com.twolinessoftware.android.framework.service.comms;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.StringReader;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -29,6 +33,22 @@ public abstract class Parser {
 
 	public abstract void parse(String xml);
 
+	/**
+	 * Parses a document read from a stream. The default implementation reads
+	 * the whole stream into memory and hands it to {@link #parse(String)};
+	 * streaming parsers should override it.
+	 */
+	public void parse(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		StringBuilder xml = new StringBuilder();
+		char[] buf = new char[8192];
+		int read;
+		while ((read = reader.read(buf)) != -1) {
+			xml.append(buf, 0, read);
+		}
+		parse(xml.toString());
+	}
+
 	protected XmlPullParser buildXmlParser(String xml)
 			throws XmlPullParserException {
 		XmlPullParser xpp = null;
@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds track points by scanning the raw bytes of a GPX document instead of
+ * running a full XML parser. Only the markup around points is understood:
+ * trkpt with its lat/lon attributes and the children registered in
+ * {@link GpxFields}. Everything else is skipped as opaque markup.
+ *
+ * Whenever the document uses something the scanner does not decode itself
+ * (a non ASCII compatible encoding, entities or CDATA inside a point, mixed
+ * content) it throws {@link UnsupportedException} so the caller can hand the
+ * document to {@link GpxSaxParser} instead.
+ */
+class GpxByteScanner {
+
+	static class UnsupportedException extends Exception {
+
+		private static final long serialVersionUID = -3402911342675406186L;
+
+		UnsupportedException(String message) {
+			super(message);
+		}
+	}
+
+	private final ByteBuffer data;
+	private final int limit;
+	private final GpxSaxParserListener listener;
+
+	private final GpxTrackPoint point = new GpxTrackPoint();
+	private char[] chars = new char[64];
+
+	private boolean inTrack;
+	private int pointCount;
+	private int stopPosition;
+
+	GpxByteScanner(ByteBuffer data, GpxSaxParserListener listener) {
+		this.data = data;
+		this.limit = data.limit();
+		this.listener = listener;
+	}
+
+	/**
+	 * Number of points handed to the listener so far.
+	 */
+	int getPointCount() {
+		return pointCount;
+	}
+
+	/**
+	 * Position of the tag the last scan stopped at, or the end of the data.
+	 */
+	int getStopPosition() {
+		return stopPosition;
+	}
+
+	/**
+	 * Whether the last scan ended inside a trk element.
+	 */
+	boolean isInTrack() {
+		return inTrack;
+	}
+
+	/**
+	 * Scans a complete document.
+	 */
+	void scanDocument() throws UnsupportedException {
+		scanDocument(limit);
+	}
+
+	/**
+	 * Scans the start of a document up to the given position.
+	 */
+	void scanDocument(int to) throws UnsupportedException {
+		scan(checkEncoding(), to, false);
+	}
+
+	/**
+	 * Scans every point whose start tag begins in [from, to). A point that
+	 * starts in the range is read to its end even if that lies past it.
+	 */
+	void scan(int from, int to, boolean startInTrack) throws UnsupportedException {
+		inTrack = startInTrack;
+
+		int p = from;
+		while (true) {
+			int lt = indexOf('<', p);
+			if (lt < 0 || lt >= to) {
+				stopPosition = lt < 0 ? limit : lt;
+				return;
+			}
+
+			byte c = byteAt(lt + 1);
+			if (c == '!') {
+				p = skipDeclaration(lt, false);
+			} else if (c == '?') {
+				p = skipProcessingInstruction(lt);
+			} else if (c == '/') {
+				if (nameIs(lt + 2, "trk"))
+					inTrack = false;
+				p = skipTag(lt);
+			} else if (inTrack && nameIs(lt + 1, "trkpt")) {
+				p = readPoint(lt);
+			} else {
+				if (nameIs(lt + 1, "trk"))
+					inTrack = true;
+				p = skipTag(lt);
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of the first trkpt start tag at or after from,
+	 * or the end of the data. The match is purely textual, the caller has to
+	 * verify it is real markup.
+	 */
+	int nextPointTag(int from) {
+		int p = from;
+		while (true) {
+			int lt = indexOf('<', p);
+			if (lt < 0)
+				return limit;
+			if (nameIs(lt + 1, "trkpt"))
+				return lt;
+			p = lt + 1;
+		}
+	}
+
+	/**
+	 * Returns the first position after a byte order mark, rejecting
+	 * documents whose markup is not plain ASCII.
+	 */
+	private int checkEncoding() throws UnsupportedException {
+		if (limit >= 2) {
+			int first = byteAt(0) & 0xFF;
+			int second = byteAt(1) & 0xFF;
+			if ((first == 0xFE && second == 0xFF) || (first == 0xFF && second == 0xFE)
+					|| first == 0 || second == 0)
+				throw new UnsupportedException("UTF-16/32 document");
+		}
+
+		int start = 0;
+		if (limit >= 3 && (byteAt(0) & 0xFF) == 0xEF && (byteAt(1) & 0xFF) == 0xBB
+				&& (byteAt(2) & 0xFF) == 0xBF)
+			start = 3;
+
+		if (startsWith(start, "<?xml")) {
+			int end = indexOf('>', start);
+			int encoding = indexOf(start, end, "encoding");
+			if (encoding >= 0) {
+				int quote = encoding + 8;
+				while (quote < end && byteAt(quote) != '"' && byteAt(quote) != '\'')
+					quote++;
+				String name = ascii(quote + 1, indexOf(byteAt(quote), quote + 1)).toLowerCase();
+				if (!name.equals("utf-8") && !name.equals("us-ascii")
+						&& !name.equals("ascii") && !name.startsWith("iso-8859-")
+						&& !name.startsWith("windows-125"))
+					throw new UnsupportedException("Encoding " + name);
+			}
+		}
+
+		return start;
+	}
+
+	private int readPoint(int lt) throws UnsupportedException {
+		point.reset();
+
+		boolean hasLat = false;
+		boolean hasLon = false;
+
+		// Attributes
+		int p = lt + 6;
+		while (true) {
+			p = skipWhitespace(p);
+			byte b = byteAt(p);
+			if (b == '>') {
+				p++;
+				break;
+			}
+			if (b == '/') {
+				checkCoordinates(hasLat, hasLon);
+				emit();
+				return skipTag(lt);
+			}
+
+			int nameStart = p;
+			while (p < limit && data.get(p) != '=' && !isWhitespace(data.get(p)))
+				p++;
+			int nameEnd = p;
+
+			p = skipWhitespace(p);
+			if (byteAt(p) != '=')
+				throw new UnsupportedException("Malformed attribute");
+			p = skipWhitespace(p + 1);
+
+			byte quote = byteAt(p);
+			if (quote != '"' && quote != '\'')
+				throw new UnsupportedException("Malformed attribute");
+			int valueStart = p + 1;
+			int valueEnd = indexOf(quote, valueStart);
+			if (valueEnd < 0)
+				throw new UnsupportedException("Truncated document");
+
+			if (rangeIs(nameStart, nameEnd, "lat")) {
+				point.setLat(GpxNumber.parseDouble(text(valueStart, valueEnd), 0, valueEnd - valueStart));
+				hasLat = true;
+			} else if (rangeIs(nameStart, nameEnd, "lon")) {
+				point.setLon(GpxNumber.parseDouble(text(valueStart, valueEnd), 0, valueEnd - valueStart));
+				hasLon = true;
+			}
+
+			p = valueEnd + 1;
+		}
+
+		checkCoordinates(hasLat, hasLon);
+
+		// Children up to </trkpt>, those of containers count as children too
+		int containers = 0;
+		while (true) {
+			int child = indexOf('<', p);
+			if (child < 0)
+				throw new UnsupportedException("Truncated document");
+
+			byte c = byteAt(child + 1);
+			if (c == '/') {
+				if (containers > 0) {
+					containers--;
+					p = skipTag(child);
+					continue;
+				}
+				if (!nameIs(child + 2, "trkpt"))
+					throw new UnsupportedException("Unbalanced trkpt");
+				emit();
+				return skipTag(child);
+			}
+			if (c == '!') {
+				p = skipDeclaration(child, true);
+				continue;
+			}
+			if (c == '?') {
+				p = skipProcessingInstruction(child);
+				continue;
+			}
+
+			int nameStart = child + 1;
+			int nameEnd = nameStart;
+			while (nameEnd < limit && !isNameEnd(data.get(nameEnd)))
+				nameEnd++;
+
+			GpxFields.Entry field = GpxFields.lookup(data, nameStart, nameEnd);
+			if (field == null) {
+				p = skipElement(child);
+				continue;
+			}
+
+			int textStart = skipTag(child);
+			if (byteAt(textStart - 2) == '/') {
+				p = textStart;
+				continue;
+			}
+			if (field.isContainer()) {
+				containers++;
+				p = textStart;
+				continue;
+			}
+
+			int textEnd = indexOf('<', textStart);
+			if (textEnd < 0 || byteAt(textEnd + 1) != '/'
+					|| !nameIs(textEnd + 2, nameStart, nameEnd))
+				throw new UnsupportedException("Mixed content in " + ascii(nameStart, nameEnd));
+
+			char[] value = text(textStart, textEnd);
+			int length = textEnd - textStart;
+			p = skipTag(textEnd);
+
+			if (length > 0)
+				field.apply(point, value, length);
+		}
+	}
+
+	private void checkCoordinates(boolean hasLat, boolean hasLon) {
+		if (!hasLat)
+			throw new NumberFormatException("Missing lat attribute");
+		if (!hasLon)
+			throw new NumberFormatException("Missing lon attribute");
+	}
+
+	private void emit() {
+		pointCount++;
+		if (listener != null)
+			listener.onGpxPoint(point);
+	}
+
+	/**
+	 * Skips the element starting at lt including everything inside it.
+	 */
+	private int skipElement(int lt) throws UnsupportedException {
+		int p = skipTag(lt);
+		if (byteAt(p - 2) == '/')
+			return p;
+
+		int depth = 1;
+		while (depth > 0) {
+			int next = indexOf('<', p);
+			if (next < 0)
+				throw new UnsupportedException("Truncated document");
+
+			byte c = byteAt(next + 1);
+			if (c == '!') {
+				p = skipDeclaration(next, false);
+			} else if (c == '?') {
+				p = skipProcessingInstruction(next);
+			} else if (c == '/') {
+				depth--;
+				p = skipTag(next);
+			} else {
+				p = skipTag(next);
+				if (byteAt(p - 2) != '/')
+					depth++;
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Skips comments, CDATA sections and a DOCTYPE without internal subset.
+	 */
+	private int skipDeclaration(int lt, boolean insidePoint) throws UnsupportedException {
+		if (startsWith(lt, "<!--"))
+			return skipPast(lt + 4, "-->");
+
+		if (startsWith(lt, "<![CDATA[")) {
+			if (insidePoint)
+				throw new UnsupportedException("CDATA inside trkpt");
+			return skipPast(lt + 9, "]]>");
+		}
+
+		int end = indexOf('>', lt);
+		if (end < 0)
+			throw new UnsupportedException("Truncated document");
+		if (indexOf(lt, end, "[") >= 0)
+			throw new UnsupportedException("DOCTYPE with internal subset");
+		return end + 1;
+	}
+
+	private int skipProcessingInstruction(int lt) throws UnsupportedException {
+		return skipPast(lt + 2, "?>");
+	}
+
+	/**
+	 * Returns the position after the '>' closing the tag at lt. Attribute
+	 * values may legally contain '>', so quotes are honoured.
+	 */
+	private int skipTag(int lt) throws UnsupportedException {
+		byte quote = 0;
+		for (int p = lt + 1; p < limit; p++) {
+			byte b = data.get(p);
+			if (quote != 0) {
+				if (b == quote)
+					quote = 0;
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return p + 1;
+			}
+		}
+		throw new UnsupportedException("Truncated document");
+	}
+
+	private int skipPast(int from, String terminator) throws UnsupportedException {
+		int at = indexOf(from, limit, terminator);
+		if (at < 0)
+			throw new UnsupportedException("Truncated document");
+		return at + terminator.length();
+	}
+
+	private int skipWhitespace(int p) {
+		while (p < limit && isWhitespace(data.get(p)))
+			p++;
+		return p;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	private static boolean isNameEnd(byte b) {
+		return isWhitespace(b) || b == '>' || b == '/';
+	}
+
+	/**
+	 * True if the element name at the position is exactly the given name.
+	 */
+	private boolean nameIs(int at, String name) {
+		if (!startsWith(at, name))
+			return false;
+		return isNameEnd(byteAt(at + name.length()));
+	}
+
+	/**
+	 * True if the element name at the position is the one in [start, end).
+	 */
+	private boolean nameIs(int at, int start, int end) {
+		int length = end - start;
+		if (at + length > limit)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (data.get(at + i) != data.get(start + i))
+				return false;
+		}
+		return isNameEnd(byteAt(at + length));
+	}
+
+	private boolean rangeIs(int start, int end, String value) {
+		return end - start == value.length() && startsWith(start, value);
+	}
+
+	private boolean startsWith(int at, String value) {
+		if (at + value.length() > limit)
+			return false;
+		for (int i = 0; i < value.length(); i++) {
+			if (data.get(at + i) != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private byte byteAt(int at) {
+		return at < limit ? data.get(at) : 0;
+	}
+
+	private int indexOf(int b, int from) {
+		for (int p = from; p < limit; p++) {
+			if (data.get(p) == b)
+				return p;
+		}
+		return -1;
+	}
+
+	private int indexOf(int from, int to, String value) {
+		if (to < 0)
+			to = limit;
+		for (int p = from; p <= to - value.length(); p++) {
+			if (startsWith(p, value))
+				return p;
+		}
+		return -1;
+	}
+
+	/**
+	 * Copies the bytes of a value into the reusable char buffer. Entities
+	 * would need decoding, so they are left to the SAX parser.
+	 */
+	private char[] text(int start, int end) throws UnsupportedException {
+		int length = end - start;
+		if (length > chars.length)
+			chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			byte b = data.get(start + i);
+			if (b == '&')
+				throw new UnsupportedException("Entity inside trkpt");
+			chars[i] = (char) (b & 0xFF);
+		}
+		return chars;
+	}
+
+	private String ascii(int start, int end) {
+		StringBuilder value = new StringBuilder();
+		for (int p = start; p < end; p++)
+			value.append((char) (data.get(p) & 0xFF));
+		return value.toString();
+	}
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Registry of the trkpt child elements the parsers read: the GPX ones (ele,
+ * time, fix, sat, hdop and the GPX 1.0 speed and course) and the speed,
+ * course and accuracy elements loggers put in their extensions. Container
+ * elements such as extensions are looked into, anything not registered is
+ * skipped.
+ *
+ * A name is first looked up as written, prefix included, then by its local
+ * part, so "rmc:speed" can be in knots while any other "speed" is in m/s.
+ * Lookups hash the name where the parser found it into a small open
+ * addressing table and compare against the one entry found, nothing is
+ * allocated. Names are registered before parsing starts.
+ */
+public final class GpxFields {
+
+	public static final int ELE = 1;
+	public static final int TIME = 2;
+	public static final int FIX = 3;
+	public static final int SAT = 4;
+	public static final int SPEED = 5;
+	public static final int COURSE = 6;
+	public static final int ACCURACY = 7;
+	public static final int HDOP = 8;
+
+	// Element whose children are read as if they were children of trkpt
+	public static final int CONTAINER = 9;
+
+	public static final double KNOTS = 1852.0 / 3600;
+
+	// Metres of horizontal accuracy per unit of HDOP, a typical receiver error
+	public static final double HDOP_METRES = 5.0;
+
+	private static final int MAX_COURSE = 360;
+
+	/**
+	 * A registered element name with the field it fills and the factor its
+	 * value is multiplied by.
+	 */
+	public static final class Entry {
+
+		final char[] name;
+		final int field;
+		final double scale;
+
+		Entry(String name, int field, double scale) {
+			this.name = name.toCharArray();
+			this.field = field;
+			this.scale = scale;
+		}
+
+		public boolean isContainer() {
+			return field == CONTAINER;
+		}
+
+		/**
+		 * Sets the value read from the element text on the point. Blank text
+		 * is treated as a missing element and values of the extension fields
+		 * that do not parse are ignored.
+		 */
+		public void apply(GpxTrackPoint point, char[] value, int length) {
+			int start = 0;
+			while (start < length && value[start] <= ' ')
+				start++;
+			while (length > start && value[length - 1] <= ' ')
+				length--;
+			if (start == length)
+				return;
+			length -= start;
+
+			switch (field) {
+			case ELE:
+				point.setEle((float) GpxNumber.parseDouble(value, start, length));
+				record(point, TrackStore.RECORDED_ELE);
+				return;
+			case TIME:
+				point.setTime(GpxTime.parse(value, start, length));
+				return;
+			case FIX:
+				point.setFix(TrackStore.encodeFix(value, start, length));
+				return;
+			case SAT:
+				point.setSat(TrackStore.encodeSat(value, start, length));
+				return;
+			}
+
+			double number;
+			try {
+				number = GpxNumber.parseDouble(value, start, length) * scale;
+			} catch (NumberFormatException e) {
+				return;
+			}
+			if (!(number >= 0) || Double.isInfinite(number))
+				return;
+
+			switch (field) {
+			case SPEED:
+				point.setSpeed(number);
+				record(point, TrackStore.RECORDED_SPEED);
+				break;
+			case COURSE:
+				point.setHeading(number % MAX_COURSE);
+				record(point, TrackStore.RECORDED_HEADING);
+				break;
+			case ACCURACY:
+				point.setAccuracy((float) number);
+				record(point, TrackStore.RECORDED_ACCURACY);
+				break;
+			case HDOP:
+				// Only an estimate, an accuracy element wins whatever the order
+				if ((point.getRecorded() & TrackStore.RECORDED_ACCURACY) == 0) {
+					point.setAccuracy((float) (number * HDOP_METRES));
+					record(point, TrackStore.RECORDED_ACCURACY);
+				}
+				break;
+			}
+		}
+
+		private static void record(GpxTrackPoint point, byte bit) {
+			point.setRecorded((byte) (point.getRecorded() | bit));
+		}
+	}
+
+	private static Entry[] entries = new Entry[0];
+	private static volatile Entry[] table = new Entry[16];
+
+	static {
+		register("ele", ELE, 1);
+		register("time", TIME, 1);
+		register("fix", FIX, 1);
+		register("sat", SAT, 1);
+		register("hdop", HDOP, 1);
+		register("extensions", CONTAINER, 1);
+
+		// GPX 1.0 and Garmin TrackPointExtension v2
+		register("speed", SPEED, 1);
+		register("course", COURSE, 1);
+		register("TrackPointExtension", CONTAINER, 1);
+
+		// NMEA RMC loggers
+		register("rmc:speed", SPEED, KNOTS);
+
+		// Android loggers
+		register("accuracy", ACCURACY, 1);
+		register("hacc", ACCURACY, 1);
+	}
+
+	private GpxFields() {
+	}
+
+	/**
+	 * Adds an element name, with its prefix to match only that prefix. The
+	 * value is multiplied by scale to get metres, m/s or degrees.
+	 */
+	public static synchronized void register(String name, int field, double scale) {
+		Entry[] all = Arrays.copyOf(entries, entries.length + 1);
+		all[all.length - 1] = new Entry(name, field, scale);
+
+		int capacity = Integer.highestOneBit(all.length * 4 - 1) << 1;
+		Entry[] slots = new Entry[Math.max(16, capacity)];
+		for (Entry entry : all) {
+			int slot = hash(entry.name, 0, entry.name.length) & (slots.length - 1);
+			while (slots[slot] != null)
+				slot = (slot + 1) & (slots.length - 1);
+			slots[slot] = entry;
+		}
+
+		entries = all;
+		table = slots;
+	}
+
+	/**
+	 * Looks up the element name in bytes [start, end) of the data, null if
+	 * it is not registered.
+	 */
+	static Entry lookup(ByteBuffer data, int start, int end) {
+		int hash = 0;
+		int localHash = 0;
+		int local = start;
+		for (int p = start; p < end; p++) {
+			byte b = data.get(p);
+			hash = 31 * hash + b;
+			localHash = 31 * localHash + b;
+			if (b == ':') {
+				local = p + 1;
+				localHash = 0;
+			}
+		}
+
+		Entry entry = find(data, start, end, hash);
+		if (entry != null || local == start)
+			return entry;
+		return find(data, local, end, localHash);
+	}
+
+	/**
+	 * Looks up a qualified element name as SAX reports it, null if it is not
+	 * registered.
+	 */
+	public static Entry lookup(String qName) {
+		int length = qName.length();
+		int hash = 0;
+		int localHash = 0;
+		int local = 0;
+		for (int i = 0; i < length; i++) {
+			char c = qName.charAt(i);
+			hash = 31 * hash + c;
+			localHash = 31 * localHash + c;
+			if (c == ':') {
+				local = i + 1;
+				localHash = 0;
+			}
+		}
+
+		Entry entry = find(qName, 0, hash);
+		if (entry != null || local == 0)
+			return entry;
+		return find(qName, local, localHash);
+	}
+
+	private static Entry find(ByteBuffer data, int start, int end, int hash) {
+		Entry[] slots = table;
+		int slot = hash & (slots.length - 1);
+		for (Entry entry; (entry = slots[slot]) != null; slot = (slot + 1) & (slots.length - 1)) {
+			char[] name = entry.name;
+			if (name.length != end - start)
+				continue;
+			int i = 0;
+			while (i < name.length && name[i] == data.get(start + i))
+				i++;
+			if (i == name.length)
+				return entry;
+		}
+		return null;
+	}
+
+	private static Entry find(String qName, int start, int hash) {
+		Entry[] slots = table;
+		int slot = hash & (slots.length - 1);
+		for (Entry entry; (entry = slots[slot]) != null; slot = (slot + 1) & (slots.length - 1)) {
+			char[] name = entry.name;
+			if (name.length != qName.length() - start)
+				continue;
+			int i = 0;
+			while (i < name.length && name[i] == qName.charAt(start + i))
+				i++;
+			if (i == name.length)
+				return entry;
+		}
+		return null;
+	}
+
+	private static int hash(char[] name, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + name[i];
+		return hash;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.twolinessoftware.android.framework.service.comms.Parser;
+import com.twolinessoftware.android.framework.util.Logger;
+
+/**
+ * Parses GPX files by memory mapping them and scanning the bytes directly
+ * with {@link GpxByteScanner}. Documents the scanner cannot handle are
+ * handed to {@link GpxSaxParser}, which continues after the points that
+ * were already delivered.
+ */
+public class GpxMappedParser extends Parser {
+
+	private static final String LOGNAME = "GpxMappedParser";
+
+	private GpxSaxParserListener listener;
+
+	public GpxMappedParser(GpxSaxParserListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * A String can't be mapped, so this simply uses the SAX parser.
+	 */
+	@Override
+	public void parse(String xml) {
+		new GpxSaxParser(listener).parse(xml);
+	}
+
+	@Override
+	public void parse(InputStream in) {
+		new GpxSaxParser(listener).parse(in);
+	}
+
+	public void parse(File file) {
+
+		if (listener != null)
+			listener.onGpxStart();
+
+		GpxByteScanner scanner = null;
+		try {
+			scanner = new GpxByteScanner(map(file), listener);
+			scanner.scanDocument();
+
+			if (listener != null)
+				listener.onGpxEnd();
+
+		} catch (GpxByteScanner.UnsupportedException e) {
+			Logger.i(LOGNAME, "Using SAX parser for " + file + ": " + e.getMessage());
+			parseWithSax(file, scanner == null ? 0 : scanner.getPointCount());
+		} catch (IOException e) {
+			if (listener != null)
+				listener.onGpxError(e.getMessage());
+		} catch (RuntimeException e) {
+			if (listener != null)
+				listener.onGpxError(e.getMessage());
+		}
+	}
+
+	/**
+	 * Maps the whole file read only. The mapping stays valid after the
+	 * channel is closed.
+	 */
+	static MappedByteBuffer map(File file) throws IOException,
+			GpxByteScanner.UnsupportedException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new GpxByteScanner.UnsupportedException("File too large to map");
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void parseWithSax(File file, int skipPoints) {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			new GpxSaxParser(new ResumeListener(skipPoints)).parse(in);
+		} catch (IOException e) {
+			if (listener != null)
+				listener.onGpxError(e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					Logger.e(LOGNAME, "Unable to close " + file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Passes SAX results on to the real listener, minus the start event and
+	 * the points the scanner already delivered.
+	 */
+	private class ResumeListener implements GpxSaxParserListener {
+
+		private int skipPoints;
+
+		ResumeListener(int skipPoints) {
+			this.skipPoints = skipPoints;
+		}
+
+		@Override
+		public void onGpxPoint(GpxTrackPoint item) {
+			if (skipPoints > 0) {
+				skipPoints--;
+				return;
+			}
+			if (listener != null)
+				listener.onGpxPoint(item);
+		}
+
+		@Override
+		public void onGpxError(String message) {
+			if (listener != null)
+				listener.onGpxError(message);
+		}
+
+		@Override
+		public void onGpxStart() {
+		}
+
+		@Override
+		public void onGpxEnd() {
+			if (listener != null)
+				listener.onGpxEnd();
+		}
+
+	}
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.math.BigInteger;
+
+/**
+ * Decimal to double conversion from a character range. The result is
+ * correctly rounded, i.e. identical to {@link Double#parseDouble(String)}.
+ *
+ * Numbers are decoded with Clinger's exact fast path when possible and with
+ * the Eisel-Lemire algorithm otherwise. Only inputs neither can decide
+ * (more than 19 significant digits, extreme exponents, halfway cases) fall
+ * back to {@link Double#parseDouble(String)}, which also reports malformed
+ * input with a {@link NumberFormatException}.
+ */
+public final class GpxNumber {
+
+	private static final double[] EXACT_POWERS_OF_TEN = { 1e0, 1e1, 1e2,
+			1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14,
+			1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	// Plenty for coordinates and elevations, the rest goes to the fallback
+	private static final int MIN_EXPONENT = -64;
+	private static final int MAX_EXPONENT = 64;
+
+	// 128 bit approximations (rounded down) of the powers of ten
+	private static final long[] POWERS_HI = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+	private static final long[] POWERS_LO = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+
+	static {
+		BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+		for (int q = MIN_EXPONENT; q <= MAX_EXPONENT; q++) {
+			BigInteger power;
+			if (q >= 0) {
+				power = BigInteger.TEN.pow(q);
+				int shift = power.bitLength() - 128;
+				power = shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+			} else {
+				BigInteger divisor = BigInteger.TEN.pow(-q);
+				power = BigInteger.ONE.shiftLeft(divisor.bitLength() + 127)
+						.divide(divisor);
+			}
+			POWERS_HI[q - MIN_EXPONENT] = power.shiftRight(64).longValue();
+			POWERS_LO[q - MIN_EXPONENT] = power.and(mask).longValue();
+		}
+	}
+
+	private GpxNumber() {
+	}
+
+	public static double parseDouble(char[] ch, int start, int length) {
+		int end = start + length;
+
+		while (start < end && ch[start] <= ' ')
+			start++;
+		while (end > start && ch[end - 1] <= ' ')
+			end--;
+
+		int p = start;
+		boolean negative = false;
+		if (p < end && (ch[p] == '-' || ch[p] == '+')) {
+			negative = ch[p] == '-';
+			p++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean truncated = false;
+		boolean anyDigits = false;
+
+		while (p < end && ch[p] >= '0' && ch[p] <= '9') {
+			anyDigits = true;
+			int digit = ch[p++] - '0';
+			if (digits < 19) {
+				mantissa = mantissa * 10 + digit;
+				if (mantissa != 0)
+					digits++;
+			} else {
+				exponent++;
+				truncated |= digit != 0;
+			}
+		}
+
+		if (p < end && ch[p] == '.') {
+			p++;
+			while (p < end && ch[p] >= '0' && ch[p] <= '9') {
+				anyDigits = true;
+				int digit = ch[p++] - '0';
+				if (digits < 19) {
+					mantissa = mantissa * 10 + digit;
+					if (mantissa != 0)
+						digits++;
+					exponent--;
+				} else {
+					truncated |= digit != 0;
+				}
+			}
+		}
+
+		if (p < end && (ch[p] == 'e' || ch[p] == 'E')) {
+			p++;
+			boolean negativeExponent = false;
+			if (p < end && (ch[p] == '-' || ch[p] == '+')) {
+				negativeExponent = ch[p] == '-';
+				p++;
+			}
+			int exponentDigits = p;
+			int explicit = 0;
+			while (p < end && ch[p] >= '0' && ch[p] <= '9') {
+				if (explicit < 100000)
+					explicit = explicit * 10 + (ch[p] - '0');
+				p++;
+			}
+			if (p == exponentDigits)
+				return fallback(ch, start, end);
+			exponent += negativeExponent ? -explicit : explicit;
+		}
+
+		if (!anyDigits || p != end || truncated)
+			return fallback(ch, start, end);
+
+		if (mantissa == 0)
+			return negative ? -0.0 : 0.0;
+
+		// Clinger: both operands are exact, so one rounding step is correct
+		if (mantissa > 0 && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22
+				&& exponent <= 22) {
+			double value = (double) mantissa;
+			value = exponent < 0 ? value / EXACT_POWERS_OF_TEN[-exponent]
+					: value * EXACT_POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+
+		if (exponent >= MIN_EXPONENT && exponent <= MAX_EXPONENT) {
+			long bits = eiselLemire(mantissa, exponent);
+			if (bits != -1) {
+				double value = Double.longBitsToDouble(bits);
+				return negative ? -value : value;
+			}
+		}
+
+		return fallback(ch, start, end);
+	}
+
+	/**
+	 * Returns the bits of mantissa * 10^exponent, or -1 if the result cannot
+	 * be decided without more precision.
+	 */
+	private static long eiselLemire(long mantissa, int exponent) {
+		int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+		mantissa <<= leadingZeros;
+
+		long binaryExponent = ((217706L * exponent) >> 16) + 64 + 1023
+				- leadingZeros;
+
+		long powerHi = POWERS_HI[exponent - MIN_EXPONENT];
+		long powerLo = POWERS_LO[exponent - MIN_EXPONENT];
+
+		long hi = multiplyHigh(mantissa, powerHi);
+		long lo = mantissa * powerHi;
+
+		if ((hi & 0x1FF) == 0x1FF && unsignedLess(lo + mantissa, mantissa)) {
+			long lowerHi = multiplyHigh(mantissa, powerLo);
+			long lowerLo = mantissa * powerLo;
+			long mergedHi = hi;
+			long mergedLo = lo + lowerHi;
+			if (unsignedLess(mergedLo, lo))
+				mergedHi++;
+			if ((mergedHi & 0x1FF) == 0x1FF && mergedLo == -1L
+					&& unsignedLess(lowerLo + mantissa, mantissa))
+				return -1;
+			hi = mergedHi;
+			lo = mergedLo;
+		}
+
+		long msb = hi >>> 63;
+		long result = hi >>> (msb + 9);
+		binaryExponent -= 1 ^ msb;
+
+		// Exactly halfway between two doubles
+		if (lo == 0 && (hi & 0x1FF) == 0 && (result & 3) == 1)
+			return -1;
+
+		result += result & 1;
+		result >>>= 1;
+		if ((result >>> 53) > 0) {
+			result >>>= 1;
+			binaryExponent++;
+		}
+
+		// Subnormal, infinite or NaN
+		if (binaryExponent <= 0 || binaryExponent >= 0x7FF)
+			return -1;
+
+		return (binaryExponent << 52) | (result & 0x000FFFFFFFFFFFFFL);
+	}
+
+	/**
+	 * High 64 bits of the unsigned 128 bit product.
+	 */
+	private static long multiplyHigh(long a, long b) {
+		long aLo = a & 0xFFFFFFFFL;
+		long aHi = a >>> 32;
+		long bLo = b & 0xFFFFFFFFL;
+		long bHi = b >>> 32;
+
+		long loLo = aLo * bLo;
+		long hiLo = aHi * bLo;
+		long loHi = aLo * bHi;
+		long hiHi = aHi * bHi;
+
+		long cross = (loLo >>> 32) + (hiLo & 0xFFFFFFFFL) + loHi;
+		return (hiLo >>> 32) + (cross >>> 32) + hiHi;
+	}
+
+	private static boolean unsignedLess(long a, long b) {
+		return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+	}
+
+	private static double fallback(char[] ch, int start, int end) {
+		return Double.parseDouble(new String(ch, start, end - start));
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.twolinessoftware.android.framework.util.Logger;
+
+/**
+ * Parses a large GPX file on several threads. The mapped file is cut into
+ * byte ranges at trkpt start tags, each range is scanned into its own
+ * {@link TrackStore} and the stores are joined in document order.
+ *
+ * Heading and speed depend on the previous point and are not computed here;
+ * run {@link TrackKinematics} over the result.
+ */
+public class GpxParallelParser {
+
+	private static final String LOGNAME = "GpxParallelParser";
+
+	// More chunks than threads evens out chunks that are slower to scan
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static final int MIN_CHUNK_BYTES = 256 * 1024;
+
+	private GpxSaxParserListener listener;
+	private int threads;
+
+	/**
+	 * @param listener receives parse errors, points go into the returned store
+	 */
+	public GpxParallelParser(GpxSaxParserListener listener, int threads) {
+		this.listener = listener;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Returns the parsed track, or null if the file could not be parsed.
+	 */
+	public TrackStore parse(File file) {
+		try {
+			ByteBuffer data = GpxMappedParser.map(file);
+			TrackStore track = parseChunks(data);
+			if (track != null)
+				return track;
+			Logger.i(LOGNAME, "Parsing " + file + " serially, chunks did not line up");
+		} catch (GpxByteScanner.UnsupportedException e) {
+			Logger.i(LOGNAME, "Parsing " + file + " serially: " + e.getMessage());
+		} catch (IOException e) {
+			if (listener != null)
+				listener.onGpxError(e.getMessage());
+			return null;
+		}
+
+		TrackStoreWriter writer = new TrackStoreWriter(new TrackStore(), listener);
+		new GpxMappedParser(writer).parse(file);
+		return writer.hasFailed() ? null : writer.getStore();
+	}
+
+	/**
+	 * Returns null if the chunks turn out not to line up with the document
+	 * structure, e.g. because a boundary fell into a comment. Errors also
+	 * return null, the serial parse then reports them at the right place.
+	 */
+	private TrackStore parseChunks(ByteBuffer data)
+			throws GpxByteScanner.UnsupportedException {
+		int size = data.limit();
+		int chunkCount = (int) Math.max(1, Math.min((long) threads * CHUNKS_PER_THREAD,
+				size / MIN_CHUNK_BYTES));
+
+		// The first chunk starts at the document start, the others at a trkpt
+		GpxByteScanner boundaryScanner = new GpxByteScanner(data, null);
+		List<Integer> starts = new ArrayList<Integer>();
+		starts.add(0);
+		for (int i = 1; i < chunkCount; i++) {
+			int start = boundaryScanner.nextPointTag((int) ((long) size * i / chunkCount));
+			if (start > starts.get(starts.size() - 1) && start < size)
+				starts.add(start);
+		}
+		starts.add(size);
+
+		List<ChunkTask> tasks = new ArrayList<ChunkTask>();
+		for (int i = 0; i < starts.size() - 1; i++)
+			tasks.add(new ChunkTask(data.duplicate(), starts.get(i), starts.get(i + 1), i == 0));
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+		try {
+			List<Future<GpxByteScanner>> results = executor.invokeAll(tasks);
+
+			TrackStore track = new TrackStore();
+			GpxByteScanner previous = null;
+			for (int i = 0; i < results.size(); i++) {
+				GpxByteScanner scanner = results.get(i).get();
+				if (previous != null && (previous.getStopPosition() != starts.get(i)
+						|| !previous.isInTrack()))
+					return null;
+				track.addAll(tasks.get(i).store);
+				previous = scanner;
+			}
+			return track;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GpxByteScanner.UnsupportedException("Interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof GpxByteScanner.UnsupportedException)
+				throw (GpxByteScanner.UnsupportedException) cause;
+			Logger.i(LOGNAME, "Chunked parse failed: " + cause);
+			return null;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static class ChunkTask implements Callable<GpxByteScanner> {
+
+		private final ByteBuffer data;
+		private final int from;
+		private final int to;
+		private final boolean first;
+		private final TrackStore store = new TrackStore();
+
+		ChunkTask(ByteBuffer data, int from, int to, boolean first) {
+			this.data = data;
+			this.from = from;
+			this.to = to;
+			this.first = first;
+		}
+
+		@Override
+		public GpxByteScanner call() throws Exception {
+			GpxByteScanner scanner = new GpxByteScanner(data,
+					new TrackStoreWriter(store, null));
+			if (first)
+				scanner.scanDocument(to);
+			else
+				scanner.scan(from, to, true);
+			return scanner;
+		}
+
+	}
+
+}
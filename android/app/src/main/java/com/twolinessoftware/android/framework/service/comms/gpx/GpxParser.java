@@ -15,7 +15,13 @@
  */
 package com.twolinessoftware.android.framework.service.comms.gpx;
 
+import java.lang.reflect.Field;
+
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.converters.reflection.ReflectionConverter;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.mapper.Mapper;
 import com.twolinessoftware.android.framework.service.comms.Parser;
 import com.twolinessoftware.android.framework.service.comms.XStreamParser;
 
@@ -37,6 +43,10 @@ public class GpxParser extends Parser {
 			xstream.alias("trkseg", GpxTrackSegment.class);
 			xstream.alias("trk", GpxTrackSegments.class);
 
+			xstream.registerConverter(new GpxTrackPointConverter(xstream
+					.getMapper(), xstream.getReflectionProvider()),
+					XStream.PRIORITY_VERY_HIGH);
+
 			xstream.useAttributeFor(GpxTrackPoint.class, "lat");
 			xstream.useAttributeFor(GpxTrackPoint.class, "lon");
 
@@ -55,4 +65,40 @@ public class GpxParser extends Parser {
 		}
 	}
 
+	/**
+	 * GpxTrackPoint keeps its time as epoch millis and fix and sat as byte
+	 * codes. Those fields are decoded by name, everything else as usual.
+	 */
+	private static class GpxTrackPointConverter extends ReflectionConverter {
+
+		GpxTrackPointConverter(Mapper mapper, ReflectionProvider reflectionProvider) {
+			super(mapper, reflectionProvider);
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public boolean canConvert(Class type) {
+			return type == GpxTrackPoint.class;
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected Object unmarshallField(UnmarshallingContext context,
+				Object result, Class type, Field field) {
+			String name = field.getName();
+			if (name.equals("time"))
+				return GpxTime.parse(text(context, result));
+			if (name.equals("fix"))
+				return TrackStore.encodeFix(text(context, result));
+			if (name.equals("sat"))
+				return TrackStore.encodeSat(text(context, result));
+			return super.unmarshallField(context, result, type, field);
+		}
+
+		private static String text(UnmarshallingContext context, Object result) {
+			return (String) context.convertAnother(result, String.class);
+		}
+
+	}
+
 }
@@ -15,7 +15,10 @@
  */
 package com.twolinessoftware.android.framework.service.comms.gpx;
 
+import java.io.InputStream;
 import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -38,10 +41,21 @@ public class GpxSaxParser extends Parser {
 
 	@Override
 	public void parse(String xml) {
+		parse(new InputSource(new StringReader(xml)));
+	}
 
-		try {
+	/**
+	 * Parses the document straight from the stream. Only the current point is
+	 * held in memory, so the file size does not matter.
+	 */
+	@Override
+	public void parse(InputStream in) {
+		parse(new InputSource(in));
+	}
 
-			String data = getNodesFromXml(xml, "trk");
+	private void parse(InputSource source) {
+
+		try {
 
 			SAXParserFactory spf = SAXParserFactory.newInstance();
 			SAXParser sp = spf.newSAXParser();
@@ -52,8 +66,7 @@ public class GpxSaxParser extends Parser {
 			GpxHandler gpxHandler = new GpxHandler();
 			xr.setContentHandler(gpxHandler);
 
-			xr.parse(new InputSource(new StringReader(data)));
-		
+			xr.parse(source);
 
 		} catch (Exception e) {
 			if (listener != null)
@@ -64,8 +77,40 @@ public class GpxSaxParser extends Parser {
 
 	class GpxHandler extends DefaultHandler {
 
+		private static final int TAG_OTHER = 0;
+		private static final int TAG_TRK = 1;
+		private static final int TAG_TRKSEG = 2;
+		private static final int TAG_TRKPT = 3;
+
+		private final HashMap<String, Integer> tags = new HashMap<String, Integer>();
+
+		private final GpxTrackPoint reusablePoint = new GpxTrackPoint();
 		private GpxTrackPoint point;
-		private String currentTag;
+
+		// Points are only read inside <trk>, waypoints and routes are ignored
+		private boolean inTrack;
+
+		// Element nesting, and how deep we are inside a subtree being skipped
+		private int depth;
+		private int skipDepth;
+
+		// Text of the current element, SAX may deliver it in several pieces
+		private GpxFields.Entry textField;
+		private char[] text = new char[64];
+		private int textLength;
+
+		private char[] attributeBuffer = new char[32];
+
+		GpxHandler() {
+			tags.put("trk", TAG_TRK);
+			tags.put("trkseg", TAG_TRKSEG);
+			tags.put("trkpt", TAG_TRKPT);
+		}
+
+		private int tagOf(String qName) {
+			Integer tag = tags.get(qName);
+			return tag == null ? TAG_OTHER : tag;
+		}
 
 		@Override
 		public void startDocument() throws SAXException {
@@ -76,44 +121,103 @@ public class GpxSaxParser extends Parser {
 		@Override
 		public void characters(char[] ch, int start, int length)
 				throws SAXException {
-			if (currentTag != null) {
-				String value = new String(ch, start, length);
-
-				if (currentTag.equalsIgnoreCase("ele"))
-					point.setEle(Float.parseFloat(value));
-				else if (currentTag.equalsIgnoreCase("time"))
-					point.setTime(value);
-				else if (currentTag.equalsIgnoreCase("sat"))
-					point.setSat(value);
-				else if (currentTag.equalsIgnoreCase("fix"))
-					point.setFix(value);
-			}
+			if (textField == null)
+				return;
+
+			if (textLength + length > text.length)
+				text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+			System.arraycopy(ch, start, text, textLength, length);
+			textLength += length;
 		}
 
 		@Override
 		public void startElement(String uri, String localName, String qName,
 				Attributes attributes) throws SAXException {
-			if (qName.equalsIgnoreCase("trkpt")) {
-				point = new GpxTrackPoint();
-				point.setLat(Float.parseFloat(attributes.getValue("lat")));
-				point.setLon(Float.parseFloat(attributes.getValue("lon")));
+			if (skipDepth > 0) {
+				skipDepth++;
+				return;
+			}
+
+			if (point != null) {
+				GpxFields.Entry field = GpxFields.lookup(qName);
+				if (field == null) {
+					// Anything we don't play back
+					skipDepth = 1;
+					return;
+				}
+				if (!field.isContainer()) {
+					textField = field;
+					textLength = 0;
+				}
+				depth++;
+				return;
+			}
 
+			int tag = tagOf(qName);
+			if (inTrack) {
+				if (tag == TAG_TRKPT) {
+					point = reusablePoint;
+					point.reset();
+					point.setLat(parseCoordinate(attributes, "lat"));
+					point.setLon(parseCoordinate(attributes, "lon"));
+				} else if (tag != TAG_TRKSEG) {
+					skipDepth = 1;
+					return;
+				}
+			} else if (tag == TAG_TRK) {
+				inTrack = true;
+			} else if (depth > 0) {
+				// Metadata, waypoints and routes below the document element
+				skipDepth = 1;
+				return;
 			}
 
-			currentTag = qName;
+			depth++;
 		}
 
 		@Override
 		public void endElement(String uri, String localName, String qName)
 				throws SAXException {
+			if (skipDepth > 0) {
+				skipDepth--;
+				return;
+			}
+
+			depth--;
+
+			if (textField != null) {
+				if (textLength > 0)
+					textField.apply(point, text, textLength);
+				textField = null;
+				return;
+			}
 
-			currentTag = null;
-			if (qName.equalsIgnoreCase("trkpt")) {
+			int tag = tagOf(qName);
+			if (tag == TAG_TRKPT && point != null) {
 				if (listener != null)
 					listener.onGpxPoint(point);
+				point = null;
+			} else if (tag == TAG_TRK) {
+				inTrack = false;
 			}
 		}
 
+		/**
+		 * SAX only hands out attribute values as Strings, so the digits are
+		 * copied into a reusable buffer rather than parsed through a substring.
+		 */
+		private double parseCoordinate(Attributes attributes, String name) {
+			String value = attributes.getValue(name);
+			if (value == null)
+				throw new NumberFormatException("Missing " + name + " attribute");
+
+			int length = value.length();
+			if (length > attributeBuffer.length)
+				attributeBuffer = new char[length];
+			value.getChars(0, length, attributeBuffer, 0);
+			return GpxNumber.parseDouble(attributeBuffer, 0, length);
+		}
+
 		@Override
 		public void endDocument() throws SAXException {
 			if (listener != null)
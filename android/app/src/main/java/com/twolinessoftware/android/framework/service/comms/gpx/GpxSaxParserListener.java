@@ -17,6 +17,10 @@ package com.twolinessoftware.android.framework.service.comms.gpx;
 
 public interface GpxSaxParserListener {
 
+	/**
+	 * Called for every track point. The parser reuses the same instance for
+	 * all points, so copy the values out rather than keeping a reference.
+	 */
 	void onGpxPoint(GpxTrackPoint item);
 
 	void onGpxError(String message);
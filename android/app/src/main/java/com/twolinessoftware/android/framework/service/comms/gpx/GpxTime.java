@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+/**
+ * Decodes GPX (ISO-8601) timestamps straight from a character range without
+ * allocating. Accepts "yyyy-MM-ddTHH:mm:ss" followed by optional fractional
+ * seconds and an optional zone: "Z", "+hh:mm", "+hhmm" or "+hh". Timestamps
+ * without a zone are taken as UTC, which is what GPX requires.
+ */
+public final class GpxTime {
+
+	/** Returned when the text is not a valid timestamp. */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	private static final long MILLIS_PER_MINUTE = 60L * 1000L;
+	private static final long MILLIS_PER_DAY = 24L * 60L * MILLIS_PER_MINUTE;
+
+	// Largest zone offset ISO-8601 and java.time allow
+	private static final int MAX_ZONE_HOURS = 18;
+
+	private GpxTime() {
+	}
+
+	/**
+	 * Returns the timestamp in epoch millis, or {@link #INVALID}.
+	 */
+	public static long parse(char[] ch, int start, int length) {
+		int end = start + length;
+
+		while (start < end && ch[start] <= ' ')
+			start++;
+		while (end > start && ch[end - 1] <= ' ')
+			end--;
+
+		// yyyy-MM-ddTHH:mm:ss
+		if (end - start < 19)
+			return INVALID;
+
+		int p = start;
+		int year = digits(ch, p, 4);
+		int month = digits(ch, p + 5, 2);
+		int day = digits(ch, p + 8, 2);
+		int hour = digits(ch, p + 11, 2);
+		int minute = digits(ch, p + 14, 2);
+		int second = digits(ch, p + 17, 2);
+
+		if (year < 0 || month < 1 || month > 12 || day < 1
+				|| day > daysInMonth(year, month) || hour < 0 || hour > 24
+				|| minute < 0 || minute > 59 || second < 0 || second > 60)
+			return INVALID;
+
+		if (ch[p + 4] != '-' || ch[p + 7] != '-' || ch[p + 13] != ':'
+				|| ch[p + 16] != ':')
+			return INVALID;
+
+		char t = ch[p + 10];
+		if (t != 'T' && t != 't' && t != ' ')
+			return INVALID;
+
+		p += 19;
+
+		// Fractional seconds, anything past milliseconds is dropped
+		int millis = 0;
+		if (p < end && (ch[p] == '.' || ch[p] == ',')) {
+			p++;
+			int scale = 100;
+			int digitStart = p;
+			while (p < end && ch[p] >= '0' && ch[p] <= '9') {
+				millis += (ch[p] - '0') * scale;
+				scale /= 10;
+				p++;
+			}
+			if (p == digitStart)
+				return INVALID;
+		}
+
+		// Zone offset in minutes east of UTC
+		int offset = 0;
+		if (p < end) {
+			char zone = ch[p];
+			if (zone == 'Z' || zone == 'z') {
+				p++;
+			} else if (zone == '+' || zone == '-') {
+				int zoneHours = digits(ch, p + 1, Math.min(2, end - p - 1));
+				if (zoneHours < 0 || zoneHours > MAX_ZONE_HOURS || end - p < 3)
+					return INVALID;
+				p += 3;
+
+				int zoneMinutes = 0;
+				if (p < end) {
+					if (ch[p] == ':')
+						p++;
+					if (end - p != 2)
+						return INVALID;
+					zoneMinutes = digits(ch, p, 2);
+					if (zoneMinutes < 0 || zoneMinutes > 59)
+						return INVALID;
+					p += 2;
+				}
+
+				offset = zoneHours * 60 + zoneMinutes;
+				if (zone == '-')
+					offset = -offset;
+			}
+		}
+
+		if (p != end)
+			return INVALID;
+
+		// 24:00:00 is the end of the day, nothing after it
+		if (hour == 24 && (minute != 0 || second != 0 || millis != 0))
+			return INVALID;
+
+		long days = daysFromCivil(year, month, day);
+		return days * MILLIS_PER_DAY
+				+ ((hour * 60L + minute - offset) * 60L + second) * 1000L
+				+ millis;
+	}
+
+	/**
+	 * Convenience overload for callers that already hold a String.
+	 */
+	public static long parse(String value) {
+		if (value == null)
+			return INVALID;
+		return parse(value.toCharArray(), 0, value.length());
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2) {
+			boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+			return leap ? 29 : 28;
+		}
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+	}
+
+	private static int digits(char[] ch, int start, int count) {
+		if (count <= 0)
+			return -1;
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = ch[i];
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Days since 1970-01-01 in the proleptic Gregorian calendar.
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+}
@@ -21,9 +21,9 @@ public class GpxTrackPoint implements Serializable {
 
 	private static final long serialVersionUID = -4894963006110633397L;
 	private float ele;
-	private String time;
-	private String fix;
-	private String sat;
+	private long time = GpxTime.INVALID;
+	private byte fix = TrackStore.FIX_UNKNOWN;
+	private byte sat = TrackStore.SAT_UNKNOWN;
 	private double lat;
 	private double lon;
     private double heading;
@@ -38,6 +38,9 @@ public class GpxTrackPoint implements Serializable {
 
     private double speed;
 
+	private float accuracy;
+	private byte recorded;
+
 	public float getEle() {
 		return ele;
 	}
@@ -46,27 +49,37 @@ public class GpxTrackPoint implements Serializable {
 		this.ele = ele;
 	}
 
-	public String getTime() {
+	/**
+	 * Returns the point time in epoch millis, or {@link GpxTime#INVALID} if
+	 * the point has none.
+	 */
+	public long getTime() {
 		return time;
 	}
 
-	public void setTime(String time) {
+	public void setTime(long time) {
 		this.time = time;
 	}
 
-	public String getFix() {
+	/**
+	 * Returns one of the TrackStore.FIX_* codes.
+	 */
+	public byte getFix() {
 		return fix;
 	}
 
-	public void setFix(String fix) {
+	public void setFix(byte fix) {
 		this.fix = fix;
 	}
 
-	public String getSat() {
+	/**
+	 * Returns the satellite count or TrackStore.SAT_UNKNOWN.
+	 */
+	public byte getSat() {
 		return sat;
 	}
 
-	public void setSat(String sat) {
+	public void setSat(byte sat) {
 		this.sat = sat;
 	}
 
@@ -96,4 +109,43 @@ public class GpxTrackPoint implements Serializable {
         return heading;
     }
 
+	/**
+	 * Recorded horizontal accuracy in metres.
+	 */
+	public float getAccuracy() {
+		return accuracy;
+	}
+
+	public void setAccuracy(float accuracy) {
+		this.accuracy = accuracy;
+	}
+
+	/**
+	 * Returns the TrackStore.RECORDED_* bits of the values the point came
+	 * with, the others are derived later.
+	 */
+	public byte getRecorded() {
+		return recorded;
+	}
+
+	public void setRecorded(byte recorded) {
+		this.recorded = recorded;
+	}
+
+	/**
+	 * Clears all values so the instance can be reused for the next point.
+	 */
+	public void reset() {
+		ele = 0;
+		time = GpxTime.INVALID;
+		fix = TrackStore.FIX_UNKNOWN;
+		sat = TrackStore.SAT_UNKNOWN;
+		lat = 0;
+		lon = 0;
+		heading = 0;
+		speed = 0;
+		accuracy = 0;
+		recorded = 0;
+	}
+
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+/**
+ * Alpha-beta filter on position and velocity that smooths the heading and
+ * speed of a stream of fixes. Each fix costs a constant amount of work and
+ * nothing is buffered, so it can run on points as they are played.
+ *
+ * Positions are kept as latitude and longitude, each fix is compared in
+ * metres with the filtered position, so the filter works anywhere without
+ * a fixed projection. The heading follows the filtered velocity, but only
+ * once the filtered position moved at least the minimum displacement since
+ * the heading was last set; standing still or repeated fixes leave it
+ * alone.
+ */
+public class KinematicFilter {
+
+	// Largest gains the filter stays stable with
+	public static final float MAX_ALPHA = 1f;
+	public static final float MAX_BETA = 2f;
+
+	private static final double METRES_PER_DEGREE = TrackKinematics.EARTH_RADIUS * Math.PI / 180;
+
+	// Time step assumed for fixes without usable timestamps, in seconds
+	private static final double DEFAULT_STEP = 1.0;
+
+	private final double alpha;
+	private final double beta;
+	private final double minDisplacement;
+
+	private boolean started;
+	private double lat;
+	private double lon;
+	private long time;
+
+	// Velocity in m/s to the east and north
+	private double east;
+	private double north;
+
+	// Position the heading was last set at
+	private double anchorLat;
+	private double anchorLon;
+
+	private float heading;
+	private float speed;
+
+	/**
+	 * @param alpha weight of a measured position, 0 to 1
+	 * @param beta weight of a measured velocity change, 0 to 2
+	 * @param minDisplacement metres to move before the heading changes
+	 */
+	public KinematicFilter(double alpha, double beta, double minDisplacement) {
+		this.alpha = alpha;
+		this.beta = beta;
+		this.minDisplacement = minDisplacement;
+	}
+
+	/**
+	 * Forgets the state, the next fix starts the filter again with the given
+	 * heading.
+	 */
+	public void reset() {
+		started = false;
+	}
+
+	/**
+	 * Takes in the next fix, time may be GpxTime.INVALID.
+	 */
+	public void update(double fixLat, double fixLon, long fixTime, float fixHeading) {
+		if (!started) {
+			lat = anchorLat = fixLat;
+			lon = anchorLon = fixLon;
+			time = fixTime;
+			east = north = 0;
+			heading = fixHeading;
+			speed = 0;
+			started = true;
+			return;
+		}
+
+		double step = DEFAULT_STEP;
+		if (fixTime != GpxTime.INVALID && time != GpxTime.INVALID) {
+			if (fixTime <= time)
+				return; // Same instant again, nothing new to learn
+			step = (fixTime - time) / 1000.0;
+		}
+		time = fixTime;
+
+		// Measured position relative to the filtered one, in metres
+		double metresPerLon = METRES_PER_DEGREE * Math.cos(Math.toRadians(lat));
+		double x = (fixLon - lon) * metresPerLon;
+		double y = (fixLat - lat) * METRES_PER_DEGREE;
+
+		double residualX = x - east * step;
+		double residualY = y - north * step;
+		double moveX = east * step + alpha * residualX;
+		double moveY = north * step + alpha * residualY;
+		east += beta * residualX / step;
+		north += beta * residualY / step;
+
+		lat += moveY / METRES_PER_DEGREE;
+		lon += moveX / metresPerLon;
+		speed = (float) Math.sqrt(east * east + north * north);
+
+		double anchorX = (lon - anchorLon) * metresPerLon;
+		double anchorY = (lat - anchorLat) * METRES_PER_DEGREE;
+		if (anchorX * anchorX + anchorY * anchorY >= minDisplacement * minDisplacement && speed > 0) {
+			double degrees = Math.toDegrees(Math.atan2(east, north));
+			heading = (float) (degrees < 0 ? degrees + 360 : degrees);
+			anchorLat = lat;
+			anchorLon = lon;
+		}
+	}
+
+	public float getHeading() {
+		return heading;
+	}
+
+	/**
+	 * Filtered speed in m/s.
+	 */
+	public float getSpeed() {
+		return speed;
+	}
+
+}
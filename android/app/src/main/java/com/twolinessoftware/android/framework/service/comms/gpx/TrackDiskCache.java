@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.twolinessoftware.android.framework.util.Logger;
+
+/**
+ * Persistent cache of parsed tracks, one file per source path. An entry is
+ * a small header identifying the source followed by the track in
+ * {@link TrackFile} format, so a hit is a mapped bulk load.
+ *
+ * Entries are written to a temporary file and renamed into place, readers
+ * never see a partial entry. Renaming and eviction happen under a file
+ * lock, so several processes can share the directory. The least recently
+ * used entries are removed once the directory exceeds its byte budget.
+ */
+public class TrackDiskCache {
+
+	private static final String LOGNAME = "TrackDiskCache";
+
+	private static final int MAGIC = 'G' | 'P' << 8 | 'X' << 16 | 'C' << 24;
+	private static final int VERSION = 1;
+
+	// Entry header up to the key path: magic, version, track offset, parse
+	// time, file length, modification time, content hash, path length
+	private static final int ENTRY_HEADER_SIZE = 4 + 2 + 2 + 8 + 8 + 8 + 4 + 4;
+
+	private static final String SUFFIX = ".trk";
+	private static final String LOCK_FILE = ".lock";
+
+	// The content hash covers this much at the start, middle and end
+	private static final int SAMPLE_SIZE = 64 * 1024;
+
+	// FileLock is per process, threads of this one queue up here first
+	private static final Object LOCK = new Object();
+
+	private final File directory;
+	private volatile long budget;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong savedMillis = new AtomicLong();
+
+	public TrackDiskCache(File directory, long budget) {
+		this.directory = directory;
+		this.budget = budget;
+		directory.mkdirs();
+	}
+
+	public void setBudget(long budget) {
+		this.budget = budget;
+		synchronized (LOCK) {
+			try {
+				lockAndEvict(null, null);
+			} catch (IOException e) {
+				Logger.e(LOGNAME, "Unable to trim cache: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Identifies one version of a source file: path, length, modification
+	 * time and a CRC32 over samples of the content. Sampling keeps the key
+	 * cheap for files of any size while still catching rewrites that keep
+	 * length and time.
+	 */
+	public static class Key {
+
+		final String path;
+		final long length;
+		final long modified;
+		final int hash;
+
+		Key(String path, long length, long modified, int hash) {
+			this.path = path;
+			this.length = length;
+			this.modified = modified;
+			this.hash = hash;
+		}
+
+		public static Key of(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long length = raf.length();
+				CRC32 crc = new CRC32();
+				byte[] sample = new byte[SAMPLE_SIZE];
+				long[] offsets = { 0, (length - SAMPLE_SIZE) / 2, length - SAMPLE_SIZE };
+				for (long offset : offsets) {
+					raf.seek(Math.max(0, offset));
+					int n = raf.read(sample, 0, (int) Math.min(SAMPLE_SIZE, length));
+					if (n > 0)
+						crc.update(sample, 0, n);
+				}
+				return new Key(file.getAbsolutePath(), length, file.lastModified(),
+						(int) crc.getValue());
+			} finally {
+				raf.close();
+			}
+		}
+
+		boolean matches(Key other) {
+			return path.equals(other.path) && length == other.length
+					&& modified == other.modified && hash == other.hash;
+		}
+
+	}
+
+	/**
+	 * Returns the cached track for the key, or null.
+	 */
+	public TrackStore get(Key key) {
+		File entry = entryFile(key);
+		if (!entry.exists()) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		long start = System.currentTimeMillis();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(entry, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() > Integer.MAX_VALUE)
+					throw new IOException("Entry too large");
+				ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+				if (data.remaining() < ENTRY_HEADER_SIZE)
+					throw new IOException("Truncated entry");
+				if (data.getInt() != MAGIC || data.getShort() != VERSION)
+					throw new IOException("Unknown entry format");
+				int trackOffset = data.getShort() & 0xFFFF;
+				long parseMillis = data.getLong();
+				Key stored = readKey(data);
+
+				if (!stored.matches(key)) {
+					misses.incrementAndGet();
+					return null;
+				}
+
+				TrackStore track = TrackFile.read(data, trackOffset);
+
+				entry.setLastModified(System.currentTimeMillis());
+				hits.incrementAndGet();
+				savedMillis.addAndGet(Math.max(0, parseMillis
+						- (System.currentTimeMillis() - start)));
+				return track;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			Logger.w(LOGNAME, "Dropping unreadable entry " + entry + ": " + e.getMessage());
+			entry.delete();
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a parsed track, parseMillis is what producing it took.
+	 */
+	public void put(Key key, TrackStore track, long parseMillis) {
+		byte[] path = utf8(key.path);
+		int trackOffset = align(ENTRY_HEADER_SIZE + path.length);
+		if (trackOffset + TrackFile.length(track.size()) > budget)
+			return;
+
+		File temp = null;
+		try {
+			temp = File.createTempFile("entry", ".tmp", directory);
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				FileChannel channel = out.getChannel();
+
+				ByteBuffer header = ByteBuffer.allocate(trackOffset).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC);
+				header.putShort((short) VERSION);
+				header.putShort((short) trackOffset);
+				header.putLong(parseMillis);
+				header.putLong(key.length);
+				header.putLong(key.modified);
+				header.putInt(key.hash);
+				header.putInt(path.length);
+				header.put(path);
+				header.clear();
+				while (header.hasRemaining())
+					channel.write(header);
+
+				TrackFile.write(track, channel);
+				channel.force(false);
+			} finally {
+				out.close();
+			}
+
+			synchronized (LOCK) {
+				lockAndEvict(temp, entryFile(key));
+			}
+			temp = null;
+
+		} catch (IOException e) {
+			Logger.e(LOGNAME, "Unable to cache " + key.path + ": " + e.getMessage());
+		} finally {
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Moves a finished entry into place, if any, then evicts down to the
+	 * budget. Caller holds LOCK.
+	 */
+	private void lockAndEvict(File temp, File target) throws IOException {
+		RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+		try {
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				if (temp != null && !temp.renameTo(target))
+					throw new IOException("Unable to rename " + temp + " to " + target);
+				evict();
+			} finally {
+				lock.release();
+			}
+		} finally {
+			lockFile.close();
+		}
+	}
+
+	private void evict() {
+		File[] entries = listEntries();
+		long total = 0;
+		for (File entry : entries)
+			total += entry.length();
+		if (total <= budget)
+			return;
+
+		final long[] used = new long[entries.length];
+		for (int i = 0; i < entries.length; i++)
+			used[i] = entries[i].lastModified();
+		Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return used[a] < used[b] ? -1 : used[a] == used[b] ? 0 : 1;
+			}
+		});
+
+		for (int i = 0; i < order.length && total > budget; i++) {
+			File entry = entries[order[i]];
+			long length = entry.length();
+			if (entry.delete()) {
+				total -= length;
+				Logger.d(LOGNAME, "Evicted " + entry.getName());
+			}
+		}
+	}
+
+	private File[] listEntries() {
+		File[] entries = directory.listFiles();
+		if (entries == null)
+			return new File[0];
+
+		int count = 0;
+		for (File entry : entries) {
+			if (entry.getName().endsWith(SUFFIX))
+				entries[count++] = entry;
+		}
+		return Arrays.copyOf(entries, count);
+	}
+
+	private File entryFile(Key key) {
+		CRC32 crc = new CRC32();
+		byte[] path = utf8(key.path);
+		crc.update(path, 0, path.length);
+		return new File(directory, Integer.toHexString(key.path.hashCode())
+				+ Long.toHexString(crc.getValue()) + SUFFIX);
+	}
+
+	private static Key readKey(ByteBuffer data) throws IOException {
+		long length = data.getLong();
+		long modified = data.getLong();
+		int hash = data.getInt();
+		int pathLength = data.getInt();
+		if (pathLength < 0 || pathLength > data.remaining())
+			throw new IOException("Corrupt entry header");
+		byte[] path = new byte[pathLength];
+		data.get(path);
+		return new Key(new String(path, "UTF-8"), length, modified, hash);
+	}
+
+	private static byte[] utf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Parse time avoided by hits, minus the time the hits took to load.
+	 */
+	public long getSavedMillis() {
+		return savedMillis.get();
+	}
+
+	/**
+	 * Bytes currently used by entries.
+	 */
+	public long getSize() {
+		long total = 0;
+		for (File entry : listEntries())
+			total += entry.length();
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getHits() + " misses=" + getMisses() + " saved="
+				+ getSavedMillis() + "ms size=" + getSize() + "/" + budget;
+	}
+
+}
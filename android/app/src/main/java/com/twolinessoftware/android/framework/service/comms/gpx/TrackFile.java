@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Compiled binary form of a track. A fixed 64 byte header is followed by
+ * one fixed-width column per point attribute, so loading is a handful of
+ * bulk copies out of a mapped file instead of an XML parse.
+ *
+ * <pre>
+ *  0 int    magic "GPXB"
+ *  4 short  version
+ *  6 short  header size
+ *  8 int    point count
+ * 12 int    CRC32 of the column data
+ * 16 long   first time, or GpxTime.INVALID
+ * 24 long   last time, or GpxTime.INVALID
+ * 32 double min lat, max lat, min lon, max lon
+ * 64 long[] time, double[] lat, double[] lon, float[] ele,
+ *    float[] heading, float[] speed, float[] accuracy, byte[] fix,
+ *    byte[] sat, byte[] recorded
+ * </pre>
+ *
+ * Everything is little endian, the byte order of the devices we run on.
+ * Version 2 holds great circle headings in degrees and speeds in m/s,
+ * version 3 adds the recorded accuracy and the TrackStore.RECORDED_* bits.
+ * Older versions are refused so they get converted again.
+ */
+public final class TrackFile {
+
+	public static final int MAGIC = 'G' | 'P' << 8 | 'X' << 16 | 'B' << 24;
+	public static final int VERSION = 3;
+
+	static final int HEADER_SIZE = 64;
+
+	// Bytes per point over all columns
+	private static final int POINT_SIZE = 8 + 8 + 8 + 4 + 4 + 4 + 4 + 1 + 1 + 1;
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private TrackFile() {
+	}
+
+	/**
+	 * Whether the file starts with the track file magic.
+	 */
+	public static boolean isTrackFile(File file) {
+		if (file.length() < HEADER_SIZE)
+			return false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				return Integer.reverseBytes(raf.readInt()) == MAGIC;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses a GPX file and writes it as a track file. The points are
+	 * repaired by a {@link TrackSanitizer} with the given window and maximum
+	 * speed, and heading and speed are computed and stored, so loading the
+	 * result needs no further work. Returns the sanitizer with its counts,
+	 * or null if the GPX could not be parsed, errors go to the listener.
+	 */
+	public static TrackSanitizer convert(File gpx, File out, int window,
+			double maxSpeed, GpxSaxParserListener listener) throws IOException {
+		TrackStoreWriter writer = new TrackStoreWriter(new TrackStore(), listener);
+		TrackSanitizer sanitizer = new TrackSanitizer(writer, window, maxSpeed);
+		new GpxMappedParser(sanitizer).parse(gpx);
+		if (writer.hasFailed())
+			return null;
+
+		TrackStore track = writer.getStore();
+		TrackKinematics.compute(track, 0, track.size());
+		write(track, out);
+		return sanitizer;
+	}
+
+	public static void write(TrackStore track, File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			write(track, out.getChannel());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the track at the current position of the channel. The header
+	 * goes last, once the checksum is known.
+	 */
+	static void write(TrackStore track, FileChannel channel) throws IOException {
+		int count = track.size();
+		long headerPosition = channel.position();
+
+		ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		CRC32 crc = new CRC32();
+
+		channel.position(headerPosition + HEADER_SIZE);
+		for (int column = 0; column < 10; column++) {
+			for (int index = 0; index < count; index++) {
+				if (block.remaining() < 8)
+					flush(block, crc, channel);
+				switch (column) {
+				case 0:
+					block.putLong(track.getTime(index));
+					break;
+				case 1:
+					block.putDouble(track.getLat(index));
+					break;
+				case 2:
+					block.putDouble(track.getLon(index));
+					break;
+				case 3:
+					block.putFloat(track.getEle(index));
+					break;
+				case 4:
+					block.putFloat(track.getHeading(index));
+					break;
+				case 5:
+					block.putFloat(track.getSpeed(index));
+					break;
+				case 6:
+					block.putFloat(track.getAccuracy(index));
+					break;
+				case 7:
+					block.put(track.getFix(index));
+					break;
+				case 8:
+					block.put(track.getSat(index));
+					break;
+				case 9:
+					block.put(track.getRecorded(index));
+					break;
+				}
+			}
+		}
+		flush(block, crc, channel);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putShort((short) VERSION);
+		header.putShort((short) HEADER_SIZE);
+		header.putInt(count);
+		header.putInt((int) crc.getValue());
+		writeSummary(track, header);
+		header.flip();
+		channel.write(header, headerPosition);
+		channel.position(headerPosition + length(count));
+	}
+
+	private static void writeSummary(TrackStore track, ByteBuffer header) {
+		long firstTime = GpxTime.INVALID;
+		long lastTime = GpxTime.INVALID;
+		double minLat = Double.NaN;
+		double maxLat = Double.NaN;
+		double minLon = Double.NaN;
+		double maxLon = Double.NaN;
+
+		for (int index = 0; index < track.size(); index++) {
+			long time = track.getTime(index);
+			if (time != GpxTime.INVALID) {
+				if (firstTime == GpxTime.INVALID || time < firstTime)
+					firstTime = time;
+				if (lastTime == GpxTime.INVALID || time > lastTime)
+					lastTime = time;
+			}
+
+			double lat = track.getLat(index);
+			double lon = track.getLon(index);
+			if (index == 0) {
+				minLat = maxLat = lat;
+				minLon = maxLon = lon;
+			} else {
+				minLat = Math.min(minLat, lat);
+				maxLat = Math.max(maxLat, lat);
+				minLon = Math.min(minLon, lon);
+				maxLon = Math.max(maxLon, lon);
+			}
+		}
+
+		header.putLong(firstTime);
+		header.putLong(lastTime);
+		header.putDouble(minLat);
+		header.putDouble(maxLat);
+		header.putDouble(minLon);
+		header.putDouble(maxLon);
+	}
+
+	private static void flush(ByteBuffer block, CRC32 crc, FileChannel channel)
+			throws IOException {
+		block.flip();
+		crc.update(block.array(), 0, block.limit());
+		while (block.hasRemaining())
+			channel.write(block);
+		block.clear();
+	}
+
+	/**
+	 * Bytes taken by a track of the given size, header included.
+	 */
+	static long length(int count) {
+		return HEADER_SIZE + (long) count * POINT_SIZE;
+	}
+
+	public static TrackStore read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Track file too large to map");
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), 0);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Loads the track stored at the given offset of the mapped data.
+	 */
+	static TrackStore read(ByteBuffer mapped, int offset) throws IOException {
+		ByteBuffer data = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (data.limit() - offset < HEADER_SIZE)
+			throw new IOException("Truncated track file");
+
+		data.position(offset);
+		if (data.getInt() != MAGIC)
+			throw new IOException("Not a track file");
+		int version = data.getShort();
+		int headerSize = data.getShort();
+		if (version != VERSION || headerSize != HEADER_SIZE)
+			throw new IOException("Unsupported track file version " + version);
+		int count = data.getInt();
+		int checksum = data.getInt();
+
+		int start = offset + HEADER_SIZE;
+		if (count < 0 || data.limit() - offset < length(count))
+			throw new IOException("Truncated track file");
+
+		CRC32 crc = new CRC32();
+		byte[] block = new byte[BLOCK_SIZE];
+		data.position(start);
+		int remaining = (int) (length(count) - HEADER_SIZE);
+		while (remaining > 0) {
+			int n = Math.min(remaining, BLOCK_SIZE);
+			data.get(block, 0, n);
+			crc.update(block, 0, n);
+			remaining -= n;
+		}
+		if ((int) crc.getValue() != checksum)
+			throw new IOException("Track file checksum mismatch");
+
+		long[] time = new long[count];
+		double[] lat = new double[count];
+		double[] lon = new double[count];
+		float[] ele = new float[count];
+		float[] heading = new float[count];
+		float[] speed = new float[count];
+		float[] accuracy = new float[count];
+		byte[] fix = new byte[count];
+		byte[] sat = new byte[count];
+		byte[] recorded = new byte[count];
+
+		data.position(start);
+		data.asLongBuffer().get(time);
+		data.position(data.position() + count * 8);
+		data.asDoubleBuffer().get(lat);
+		data.position(data.position() + count * 8);
+		data.asDoubleBuffer().get(lon);
+		data.position(data.position() + count * 8);
+		data.asFloatBuffer().get(ele);
+		data.position(data.position() + count * 4);
+		data.asFloatBuffer().get(heading);
+		data.position(data.position() + count * 4);
+		data.asFloatBuffer().get(speed);
+		data.position(data.position() + count * 4);
+		data.asFloatBuffer().get(accuracy);
+		data.position(data.position() + count * 4);
+		data.get(fix);
+		data.get(sat);
+		data.get(recorded);
+
+		return new TrackStore(lat, lon, time, ele, fix, sat, heading, speed,
+				accuracy, recorded, count);
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+/**
+ * Computes a fix part way between two points of a {@link TrackStore}. The
+ * result is left in the fields of the instance, so callers keep one per
+ * thread and nothing is allocated per fix.
+ *
+ * Heading and speed are those of the segment, the values the later of the
+ * two points holds, so the fix moves the way it reports. Great circle
+ * interpolation reports the bearing at the interpolated position instead.
+ */
+public class TrackInterpolator {
+
+	public static final int LINEAR = 1;
+	public static final int GREAT_CIRCLE = 2;
+
+	// Below this angular distance great circles fall back to linear
+	private static final double MIN_ANGLE = 1e-9;
+
+	public double lat;
+	public double lon;
+	public float ele;
+	public float heading;
+	public float speed;
+
+	/**
+	 * Fills in the fix at the given fraction of the way from one point to
+	 * the other.
+	 */
+	public void interpolate(int mode, TrackStore track, int from, int to, float fraction) {
+		int segment = Math.max(from, to);
+		heading = track.getHeading(segment);
+		speed = track.getSpeed(segment);
+		ele = track.getEle(from) + (track.getEle(to) - track.getEle(from)) * fraction;
+
+		if (mode != GREAT_CIRCLE || !greatCircle(track, from, to, fraction)) {
+			lat = track.getLat(from) + (track.getLat(to) - track.getLat(from)) * fraction;
+			lon = normalizeLon(track.getLon(from) + deltaLon(track.getLon(from), track.getLon(to)) * fraction);
+		}
+	}
+
+	private boolean greatCircle(TrackStore track, int from, int to, float fraction) {
+		double lat1 = Math.toRadians(track.getLat(from));
+		double lon1 = Math.toRadians(track.getLon(from));
+		double lat2 = Math.toRadians(track.getLat(to));
+		double lon2 = Math.toRadians(track.getLon(to));
+
+		double x1 = Math.cos(lat1) * Math.cos(lon1);
+		double y1 = Math.cos(lat1) * Math.sin(lon1);
+		double z1 = Math.sin(lat1);
+		double x2 = Math.cos(lat2) * Math.cos(lon2);
+		double y2 = Math.cos(lat2) * Math.sin(lon2);
+		double z2 = Math.sin(lat2);
+
+		double angle = Math.acos(Math.max(-1, Math.min(1, x1 * x2 + y1 * y2 + z1 * z2)));
+		if (angle < MIN_ANGLE)
+			return false;
+
+		double a = Math.sin((1 - fraction) * angle) / Math.sin(angle);
+		double b = Math.sin(fraction * angle) / Math.sin(angle);
+		double x = a * x1 + b * x2;
+		double y = a * y1 + b * y2;
+		double z = a * z1 + b * z2;
+
+		double latI = Math.atan2(z, Math.sqrt(x * x + y * y));
+		double lonI = Math.atan2(y, x);
+		lat = Math.toDegrees(latI);
+		lon = Math.toDegrees(lonI);
+
+		// Towards the later point, a caller playing backwards reverses it
+		double endLat = from < to ? lat2 : lat1;
+		double endLon = from < to ? lon2 : lon1;
+		double dLon = endLon - lonI;
+		double bearing = Math.toDegrees(Math.atan2(Math.sin(dLon) * Math.cos(endLat),
+				Math.cos(latI) * Math.sin(endLat) - Math.sin(latI) * Math.cos(endLat) * Math.cos(dLon)));
+		heading = (float) (bearing < 0 ? bearing + 360 : bearing);
+		return true;
+	}
+
+	private static double deltaLon(double from, double to) {
+		double delta = to - from;
+		if (delta > 180)
+			delta -= 360;
+		else if (delta < -180)
+			delta += 360;
+		return delta;
+	}
+
+	private static double normalizeLon(double lon) {
+		if (lon > 180)
+			return lon - 360;
+		if (lon < -180)
+			return lon + 360;
+		return lon;
+	}
+
+}
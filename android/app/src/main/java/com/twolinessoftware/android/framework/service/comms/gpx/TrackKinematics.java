@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+/**
+ * Derives heading and speed of each point from the point before it. Runs
+ * over a range of a {@link TrackStore}, so it works both point by point
+ * while streaming and as a single pass after a parallel parse.
+ *
+ * Distances are on a sphere and headings the initial great circle bearing,
+ * in degrees from north in [0, 360). Steps shorter than a few km, the usual
+ * case, use the equirectangular approximation, which is within a
+ * millimetre and a hundredth of a degree of haversine there at a fraction
+ * of the cost; longer ones use haversine. Speed is distance over
+ * the time between the points in m/s. Where that cannot be worked out, no
+ * timestamps or no movement, the point keeps the speed or heading of the
+ * one before it. Nothing is allocated and cos(lat) is carried over from
+ * one point to the next.
+ *
+ * Speed and heading a point was recorded with are kept as they are, and a
+ * point that has both is not computed at all.
+ */
+public final class TrackKinematics {
+
+	private static final float INITIAL_HEADING = 0.0f;
+	private static final float INITIAL_SPEED = 15.0f;
+
+	static final double EARTH_RADIUS = 6371008.8;
+
+	// Latitude or longitude step in radians below which a step is short
+	private static final double SHORT_STEP = 0.0005;
+
+	private static final int RECORDED_MOTION = TrackStore.RECORDED_HEADING | TrackStore.RECORDED_SPEED;
+
+	private TrackKinematics() {
+	}
+
+	/**
+	 * Fills heading and speed for the points in [from, to).
+	 */
+	public static void compute(TrackStore track, int from, int to) {
+		if (from >= to)
+			return;
+
+		int index = from;
+		if (index == 0) {
+			byte recorded = track.getRecorded(0);
+			if ((recorded & TrackStore.RECORDED_HEADING) == 0)
+				track.setHeading(0, INITIAL_HEADING);
+			if ((recorded & TrackStore.RECORDED_SPEED) == 0)
+				track.setSpeed(0, INITIAL_SPEED);
+			index++;
+		}
+		if (index >= to)
+			return;
+
+		float heading = track.getHeading(index - 1);
+		float speed = track.getSpeed(index - 1);
+
+		// Values of the point before, loaded again after skipped points
+		int loaded = -1;
+		double lat1 = 0;
+		double lon1 = 0;
+		double cosLat1 = 0;
+		double sinLat1 = 0;
+		long time1 = 0;
+
+		for (; index < to; index++) {
+			byte recorded = track.getRecorded(index);
+			if ((recorded & RECORDED_MOTION) == RECORDED_MOTION) {
+				heading = track.getHeading(index);
+				speed = track.getSpeed(index);
+				continue;
+			}
+
+			if (loaded != index - 1) {
+				lat1 = Math.toRadians(track.getLat(index - 1));
+				lon1 = Math.toRadians(track.getLon(index - 1));
+				cosLat1 = Math.cos(lat1);
+				sinLat1 = Math.sin(lat1);
+				time1 = track.getTime(index - 1);
+			}
+
+			double lat2 = Math.toRadians(track.getLat(index));
+			double lon2 = Math.toRadians(track.getLon(index));
+			double cosLat2 = Math.cos(lat2);
+			double sinLat2 = Math.sin(lat2);
+			long time2 = track.getTime(index);
+
+			double dLat = lat2 - lat1;
+			double dLon = lon2 - lon1;
+			double distance;
+			double bearing;
+			if (Math.abs(dLat) < SHORT_STEP && Math.abs(dLon) < SHORT_STEP) {
+				double east = dLon * (cosLat1 + cosLat2) / 2;
+				distance = EARTH_RADIUS * Math.sqrt(east * east + dLat * dLat);
+				bearing = Math.atan2(east, dLat);
+			} else {
+				double sinHalfLat = Math.sin(dLat / 2);
+				double sinHalfLon = Math.sin(dLon / 2);
+				double a = sinHalfLat * sinHalfLat + cosLat1 * cosLat2 * sinHalfLon * sinHalfLon;
+				distance = 2 * EARTH_RADIUS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+				bearing = Math.atan2(Math.sin(dLon) * cosLat2,
+						cosLat1 * sinLat2 - sinLat1 * cosLat2 * Math.cos(dLon));
+			}
+
+			if ((recorded & TrackStore.RECORDED_HEADING) != 0) {
+				heading = track.getHeading(index);
+			} else {
+				if (distance > 0) {
+					double degrees = Math.toDegrees(bearing);
+					heading = (float) (degrees < 0 ? degrees + 360 : degrees);
+				}
+				track.setHeading(index, heading);
+			}
+
+			if ((recorded & TrackStore.RECORDED_SPEED) != 0) {
+				speed = track.getSpeed(index);
+			} else {
+				if (time1 != GpxTime.INVALID && time2 != GpxTime.INVALID && time2 > time1)
+					speed = (float) (distance * 1000 / (time2 - time1));
+				track.setSpeed(index, speed);
+			}
+
+			loaded = index;
+			lat1 = lat2;
+			lon1 = lon2;
+			cosLat1 = cosLat2;
+			sinLat1 = sinLat2;
+			time1 = time2;
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recently played tracks kept in memory, bounded by their total number of
+ * points. Looking a file up only needs its path, length and modification
+ * time, no content is read.
+ *
+ * Cached stores are shared with whoever plays them and must not be
+ * modified after they were put.
+ */
+public class TrackMemoryCache {
+
+	private final LinkedHashMap<String, TrackStore> tracks = new LinkedHashMap<String, TrackStore>(
+			16, 0.75f, true);
+
+	private int maxPoints;
+	private int points;
+
+	public TrackMemoryCache(int maxPoints) {
+		this.maxPoints = maxPoints;
+	}
+
+	public static String keyOf(File file) {
+		return file.getAbsolutePath() + ':' + file.length() + ':'
+				+ file.lastModified();
+	}
+
+	public synchronized TrackStore get(String key) {
+		return tracks.get(key);
+	}
+
+	public synchronized void put(String key, TrackStore track) {
+		if (track.size() > maxPoints)
+			return;
+
+		TrackStore previous = tracks.put(key, track);
+		if (previous != null)
+			points -= previous.size();
+		points += track.size();
+		trimToSize(maxPoints);
+	}
+
+	/**
+	 * Drops least recently used tracks until at most maxPoints are held.
+	 */
+	public synchronized void trimToSize(int maxPoints) {
+		Iterator<Map.Entry<String, TrackStore>> it = tracks.entrySet().iterator();
+		while (points > maxPoints && it.hasNext()) {
+			points -= it.next().getValue().size();
+			it.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		tracks.clear();
+		points = 0;
+	}
+
+	public synchronized int getPointCount() {
+		return points;
+	}
+
+	public synchronized int getMaxPoints() {
+		return maxPoints;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "tracks=" + tracks.size() + " points=" + points + "/" + maxPoints;
+	}
+
+}
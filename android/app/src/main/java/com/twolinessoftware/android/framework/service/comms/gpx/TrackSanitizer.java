@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+/**
+ * Parser listener that repairs the points on their way to another listener,
+ * in a single pass with a few points of look ahead:
+ *
+ * <ul>
+ * <li>exact repeats of the previous point are dropped,</li>
+ * <li>timed points are put in time order within a small window, points
+ * older than the window are dropped,</li>
+ * <li>points without a time between two timed points get one, spread by
+ * distance along the way between them,</li>
+ * <li>a point that could only be reached above the maximum speed, and only
+ * left that way too, is dropped as a spike.</li>
+ * </ul>
+ *
+ * Counts of each are kept. Errors, start and end are passed on, the end
+ * after the held back points.
+ */
+public class TrackSanitizer implements GpxSaxParserListener {
+
+	// Longest run of untimed points held back waiting for a time
+	private static final int MAX_UNTIMED_RUN = 256;
+
+	private final GpxSaxParserListener listener;
+	private final double maxSpeed;
+
+	// Timed points in time order, the oldest leaves when it is full
+	private final Points window;
+
+	// Untimed points after the last timed one that left the window
+	private final Points untimed = new Points(MAX_UNTIMED_RUN);
+	private final double[] untimedDistances = new double[MAX_UNTIMED_RUN];
+
+	// Point held back until the next one shows whether it is a spike
+	private final Points candidate = new Points(1);
+
+	// Points taken out of the buffers on their way on
+	private final GpxTrackPoint released = new GpxTrackPoint();
+	private final GpxTrackPoint held = new GpxTrackPoint();
+	private final GpxTrackPoint out = new GpxTrackPoint();
+
+	private boolean hasLast;
+	private double lastLat;
+	private double lastLon;
+	private long lastTime;
+	private float lastEle;
+
+	// Latest time that left the window, GpxTime.INVALID before the first
+	private long releasedTime = GpxTime.INVALID;
+
+	// Last timed point that left the window, the start of a time fill
+	private boolean hasSeen;
+	private double seenLat;
+	private double seenLon;
+	private long seenTime;
+
+	// Last timed point passed on, the start of a spike check
+	private boolean hasPrevious;
+	private double previousLat;
+	private double previousLon;
+	private long previousTime;
+
+	private int duplicates;
+	private int reordered;
+	private int outOfOrder;
+	private int timesFilled;
+	private int spikes;
+
+	/**
+	 * @param window number of points to reorder over
+	 * @param maxSpeed speed in m/s above which a point is a spike
+	 */
+	public TrackSanitizer(GpxSaxParserListener listener, int window, double maxSpeed) {
+		this.listener = listener;
+		this.window = new Points(Math.max(1, window));
+		this.maxSpeed = maxSpeed;
+	}
+
+	/**
+	 * Passes all points of a complete track through, then ends it.
+	 */
+	public void replay(TrackStore track) {
+		GpxTrackPoint point = new GpxTrackPoint();
+		for (int i = 0; i < track.size(); i++) {
+			point.setLat(track.getLat(i));
+			point.setLon(track.getLon(i));
+			point.setTime(track.getTime(i));
+			point.setEle(track.getEle(i));
+			point.setFix(track.getFix(i));
+			point.setSat(track.getSat(i));
+			point.setHeading(track.getHeading(i));
+			point.setSpeed(track.getSpeed(i));
+			point.setAccuracy(track.getAccuracy(i));
+			point.setRecorded(track.getRecorded(i));
+			onGpxPoint(point);
+		}
+		onGpxEnd();
+	}
+
+	@Override
+	public void onGpxPoint(GpxTrackPoint item) {
+		double lat = item.getLat();
+		double lon = item.getLon();
+		long time = item.getTime();
+		float ele = item.getEle();
+
+		if (hasLast && lat == lastLat && lon == lastLon && time == lastTime && ele == lastEle) {
+			duplicates++;
+			return;
+		}
+		hasLast = true;
+		lastLat = lat;
+		lastLon = lon;
+		lastTime = time;
+		lastEle = ele;
+
+		if (time == GpxTime.INVALID) {
+			// Order across untimed points is unknown, keep what came before
+			while (window.count > 0)
+				release();
+			fillTime(item);
+			return;
+		}
+
+		if (releasedTime != GpxTime.INVALID && time < releasedTime) {
+			outOfOrder++;
+			return;
+		}
+
+		int at = window.count;
+		while (at > 0 && window.time[at - 1] > time)
+			at--;
+		if (at < window.count)
+			reordered++;
+
+		if (window.count == window.capacity()) {
+			if (at == 0) {
+				// Older than the whole window, it goes first
+				releasedTime = time;
+				fillTime(item);
+				return;
+			}
+			release();
+			at--;
+		}
+		window.insert(at, item);
+	}
+
+	@Override
+	public void onGpxError(String message) {
+		listener.onGpxError(message);
+	}
+
+	@Override
+	public void onGpxStart() {
+		listener.onGpxStart();
+	}
+
+	@Override
+	public void onGpxEnd() {
+		while (window.count > 0)
+			release();
+		flushUntimed();
+		if (candidate.count > 0) {
+			candidate.get(0, out);
+			emit(out);
+		}
+		listener.onGpxEnd();
+	}
+
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+	public int getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * Points dropped for arriving after later points already left the
+	 * window.
+	 */
+	public int getOutOfOrder() {
+		return outOfOrder;
+	}
+
+	public int getTimesFilled() {
+		return timesFilled;
+	}
+
+	public int getSpikes() {
+		return spikes;
+	}
+
+	@Override
+	public String toString() {
+		return "duplicates=" + duplicates + " reordered=" + reordered + " outOfOrder=" + outOfOrder
+				+ " timesFilled=" + timesFilled + " spikes=" + spikes;
+	}
+
+	private void release() {
+		window.get(0, released);
+		window.removeFirst();
+		releasedTime = released.getTime();
+		fillTime(released);
+	}
+
+	/**
+	 * Holds untimed points after a timed one until the next timed point
+	 * tells how to spread their times.
+	 */
+	private void fillTime(GpxTrackPoint point) {
+		double lat = point.getLat();
+		double lon = point.getLon();
+		long time = point.getTime();
+		if (time == GpxTime.INVALID) {
+			if (hasSeen && untimed.count < untimed.capacity()) {
+				untimed.insert(untimed.count, point);
+			} else {
+				// Too long a run to wait for, the rest of it stays untimed
+				flushUntimed();
+				hasSeen = false;
+				checkSpike(point);
+			}
+			return;
+		}
+
+		if (untimed.count > 0) {
+			// Spread the time between the points by the distance covered
+			double[] covered = untimedDistances;
+			double total = 0;
+			double fromLat = seenLat;
+			double fromLon = seenLon;
+			for (int i = 0; i <= untimed.count; i++) {
+				double toLat = i < untimed.count ? untimed.lat[i] : lat;
+				double toLon = i < untimed.count ? untimed.lon[i] : lon;
+				total += distance(fromLat, fromLon, toLat, toLon);
+				if (i < untimed.count)
+					covered[i] = total;
+				fromLat = toLat;
+				fromLon = toLon;
+			}
+			long span = Math.max(0, time - seenTime);
+			for (int i = 0; i < untimed.count; i++) {
+				double fraction = total > 0 ? covered[i] / total : (i + 1.0) / (untimed.count + 1);
+				untimed.time[i] = seenTime + (long) (span * fraction);
+			}
+			timesFilled += untimed.count;
+			flushUntimed();
+		}
+
+		hasSeen = true;
+		seenLat = lat;
+		seenLon = lon;
+		seenTime = time;
+		checkSpike(point);
+	}
+
+	private void flushUntimed() {
+		for (int i = 0; i < untimed.count; i++) {
+			untimed.get(i, held);
+			checkSpike(held);
+		}
+		untimed.count = 0;
+	}
+
+	/**
+	 * Passes on the held back candidate unless this point shows it was a
+	 * spike, then holds back this point if it is timed.
+	 */
+	private void checkSpike(GpxTrackPoint point) {
+		long time = point.getTime();
+		if (candidate.count > 0) {
+			if (time != GpxTime.INVALID && hasPrevious && isSpike(point.getLat(), point.getLon(), time)) {
+				spikes++;
+			} else {
+				candidate.get(0, out);
+				emit(out);
+			}
+			candidate.count = 0;
+		}
+
+		if (time == GpxTime.INVALID)
+			emit(point);
+		else
+			candidate.insert(0, point);
+	}
+
+	private boolean isSpike(double lat, double lon, long time) {
+		double candLat = candidate.lat[0];
+		double candLon = candidate.lon[0];
+		long candTime = candidate.time[0];
+		return tooFast(previousLat, previousLon, previousTime, candLat, candLon, candTime)
+				&& tooFast(candLat, candLon, candTime, lat, lon, time)
+				&& !tooFast(previousLat, previousLon, previousTime, lat, lon, time);
+	}
+
+	private boolean tooFast(double lat1, double lon1, long time1, double lat2, double lon2, long time2) {
+		double seconds = Math.max(1, time2 - time1) / 1000.0;
+		return distance(lat1, lon1, lat2, lon2) / seconds > maxSpeed;
+	}
+
+	private void emit(GpxTrackPoint point) {
+		long time = point.getTime();
+		if (time != GpxTime.INVALID) {
+			hasPrevious = true;
+			previousLat = point.getLat();
+			previousLon = point.getLon();
+			previousTime = time;
+		}
+		listener.onGpxPoint(point);
+	}
+
+	/**
+	 * Equirectangular distance in metres, close enough to tell spikes and
+	 * spread times.
+	 */
+	private static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double east = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+		double north = Math.toRadians(lat2 - lat1);
+		return TrackKinematics.EARTH_RADIUS * Math.sqrt(east * east + north * north);
+	}
+
+	/**
+	 * Small fixed size buffer of points.
+	 */
+	private static final class Points {
+
+		final double[] lat;
+		final double[] lon;
+		final long[] time;
+		final float[] ele;
+		final byte[] fix;
+		final byte[] sat;
+		final double[] heading;
+		final double[] speed;
+		final float[] accuracy;
+		final byte[] recorded;
+		int count;
+
+		Points(int capacity) {
+			lat = new double[capacity];
+			lon = new double[capacity];
+			time = new long[capacity];
+			ele = new float[capacity];
+			fix = new byte[capacity];
+			sat = new byte[capacity];
+			heading = new double[capacity];
+			speed = new double[capacity];
+			accuracy = new float[capacity];
+			recorded = new byte[capacity];
+		}
+
+		int capacity() {
+			return lat.length;
+		}
+
+		void insert(int at, GpxTrackPoint point) {
+			int moved = count - at;
+			if (moved > 0) {
+				System.arraycopy(lat, at, lat, at + 1, moved);
+				System.arraycopy(lon, at, lon, at + 1, moved);
+				System.arraycopy(time, at, time, at + 1, moved);
+				System.arraycopy(ele, at, ele, at + 1, moved);
+				System.arraycopy(fix, at, fix, at + 1, moved);
+				System.arraycopy(sat, at, sat, at + 1, moved);
+				System.arraycopy(heading, at, heading, at + 1, moved);
+				System.arraycopy(speed, at, speed, at + 1, moved);
+				System.arraycopy(accuracy, at, accuracy, at + 1, moved);
+				System.arraycopy(recorded, at, recorded, at + 1, moved);
+			}
+			lat[at] = point.getLat();
+			lon[at] = point.getLon();
+			time[at] = point.getTime();
+			ele[at] = point.getEle();
+			fix[at] = point.getFix();
+			sat[at] = point.getSat();
+			heading[at] = point.getHeading();
+			speed[at] = point.getSpeed();
+			accuracy[at] = point.getAccuracy();
+			recorded[at] = point.getRecorded();
+			count++;
+		}
+
+		void get(int index, GpxTrackPoint point) {
+			point.setLat(lat[index]);
+			point.setLon(lon[index]);
+			point.setTime(time[index]);
+			point.setEle(ele[index]);
+			point.setFix(fix[index]);
+			point.setSat(sat[index]);
+			point.setHeading(heading[index]);
+			point.setSpeed(speed[index]);
+			point.setAccuracy(accuracy[index]);
+			point.setRecorded(recorded[index]);
+		}
+
+		void removeFirst() {
+			count--;
+			System.arraycopy(lat, 1, lat, 0, count);
+			System.arraycopy(lon, 1, lon, 0, count);
+			System.arraycopy(time, 1, time, 0, count);
+			System.arraycopy(ele, 1, ele, 0, count);
+			System.arraycopy(fix, 1, fix, 0, count);
+			System.arraycopy(sat, 1, sat, 0, count);
+			System.arraycopy(heading, 1, heading, 0, count);
+			System.arraycopy(speed, 1, speed, 0, count);
+			System.arraycopy(accuracy, 1, accuracy, 0, count);
+			System.arraycopy(recorded, 1, recorded, 0, count);
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Decides which points of a {@link TrackStore} are worth playing, with
+ * Douglas-Peucker simplification of the track in chunks. The track itself
+ * is left alone, the result is a set of kept indices, so the same store can
+ * be cached and played with other settings.
+ *
+ * Chunks end after a fixed number of points or when they would span more
+ * than the maximum time gap. Their end points are always kept, so kept
+ * points are never further apart in time than that. {@link #update(boolean)}
+ * works through the points added since the last call, which lets it follow
+ * a track that is still being parsed.
+ *
+ * Positions are projected to metres around the first point of each chunk,
+ * which is accurate well within the tolerance for chunks of this length.
+ */
+public class TrackSimplifier {
+
+	private static final int CHUNK_POINTS = 1024;
+
+	private static final double METRES_PER_DEGREE = TrackKinematics.EARTH_RADIUS * Math.PI / 180;
+
+	private final TrackStore track;
+	private final double tolerance;
+	private final long maxTimeGap;
+
+	private final BitSet kept = new BitSet();
+	private final GeometryFactory factory = new GeometryFactory();
+	private final LineSegment segment = new LineSegment();
+
+	// Reused projected points, z holds the track index
+	private final Coordinate[] points = new Coordinate[CHUNK_POINTS + 1];
+
+	private int chunkStart;
+	private int decided;
+
+	private volatile int dropped;
+	private volatile double maxDeviation;
+
+	/**
+	 * @param tolerance metres a dropped point may be off the simplified track
+	 * @param maxTimeGap longest time in ms between kept points, 0 for none
+	 */
+	public TrackSimplifier(TrackStore track, double tolerance, long maxTimeGap) {
+		this.track = track;
+		this.tolerance = tolerance;
+		this.maxTimeGap = maxTimeGap;
+		for (int i = 0; i < points.length; i++)
+			points[i] = new Coordinate();
+	}
+
+	/**
+	 * Simplifies the chunks that can be completed with the points added so
+	 * far, all of them once the track is complete. Returns the number of
+	 * points decided on.
+	 */
+	public int update(boolean complete) {
+		int size = track.size();
+		while (decided < size) {
+			int end = chunkEnd(size, complete);
+			if (end < 0)
+				break;
+
+			simplify(chunkStart, end);
+			chunkStart = end;
+			decided = end + 1;
+		}
+		return decided;
+	}
+
+	/**
+	 * Whether the point was decided on and is played.
+	 */
+	public boolean isKept(int index) {
+		return index < decided && kept.get(index);
+	}
+
+	public int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Largest distance in metres of a dropped point from the kept track.
+	 */
+	public double getMaxDeviation() {
+		return maxDeviation;
+	}
+
+	/**
+	 * Last index of the chunk starting at chunkStart, -1 if it needs points
+	 * that are not there yet.
+	 */
+	private int chunkEnd(int size, boolean complete) {
+		long startTime = track.getTime(chunkStart);
+		int limit = Math.min(size - 1, chunkStart + CHUNK_POINTS);
+		for (int index = chunkStart + 1; index <= limit; index++) {
+			long time = track.getTime(index);
+			if (maxTimeGap > 0 && startTime != GpxTime.INVALID && time != GpxTime.INVALID
+					&& time - startTime > maxTimeGap)
+				return Math.max(chunkStart + 1, index - 1);
+		}
+		if (limit == chunkStart + CHUNK_POINTS)
+			return limit;
+		return complete ? size - 1 : -1;
+	}
+
+	private void simplify(int from, int to) {
+		kept.set(from);
+		kept.set(to);
+		int count = to - from + 1;
+		if (count <= 2)
+			return;
+
+		double lat0 = track.getLat(from);
+		double lon0 = track.getLon(from);
+		double scale = Math.cos(Math.toRadians(lat0));
+		for (int i = 0; i < count; i++) {
+			Coordinate point = points[i];
+			point.x = (track.getLon(from + i) - lon0) * scale * METRES_PER_DEGREE;
+			point.y = (track.getLat(from + i) - lat0) * METRES_PER_DEGREE;
+			point.z = from + i;
+		}
+
+		Coordinate[] line = count == points.length ? points : Arrays.copyOf(points, count);
+		Geometry simplified = DouglasPeuckerSimplifier.simplify(factory.createLineString(line), tolerance);
+
+		Coordinate previous = null;
+		for (Coordinate point : simplified.getCoordinates()) {
+			int index = (int) point.z;
+			kept.set(index);
+			if (previous != null)
+				measure((int) previous.z, index, from);
+			previous = point;
+		}
+	}
+
+	/**
+	 * Counts the points dropped between two kept ones and how far off they
+	 * are.
+	 */
+	private void measure(int first, int last, int from) {
+		segment.setCoordinates(points[first - from], points[last - from]);
+		double deviation = maxDeviation;
+		for (int index = first + 1; index < last; index++)
+			deviation = Math.max(deviation, segment.distance(points[index - from]));
+		maxDeviation = deviation;
+		dropped += Math.max(0, last - first - 1);
+	}
+
+}
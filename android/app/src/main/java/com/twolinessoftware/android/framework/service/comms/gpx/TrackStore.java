@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.util.Arrays;
+
+/**
+ * Column oriented store of track points. Every point attribute lives in its
+ * own primitive array so a point costs a few dozen bytes instead of a
+ * {@link GpxTrackPoint} with its strings.
+ *
+ * The store has a single writer. Readers on other threads must only access
+ * indices below {@link #size()}. A writer that fills in more of a point
+ * after appending it uses {@link #stage(GpxTrackPoint)} and
+ * {@link #publish()}, so readers never see it half written.
+ *
+ * The columns are held together in one immutable {@link Columns}. Growing
+ * copies them into a new one that is swapped in through a volatile field
+ * once the copy is complete, so a reader that picks up the new columns also
+ * sees every value copied into them.
+ */
+public class TrackStore {
+
+	public static final byte FIX_UNKNOWN = 0;
+	public static final byte FIX_NONE = 1;
+	public static final byte FIX_2D = 2;
+	public static final byte FIX_3D = 3;
+	public static final byte FIX_DGPS = 4;
+	public static final byte FIX_PPS = 5;
+
+	public static final byte SAT_UNKNOWN = -1;
+
+	// Bits of getRecorded(), values that came with the point itself
+	public static final byte RECORDED_ELE = 1;
+	public static final byte RECORDED_SPEED = 2;
+	public static final byte RECORDED_HEADING = 4;
+	public static final byte RECORDED_ACCURACY = 8;
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The column arrays of one capacity, replaced as a whole when the store
+	 * grows.
+	 */
+	private static final class Columns {
+
+		final double[] lat;
+		final double[] lon;
+		final long[] time;
+		final float[] ele;
+		final byte[] fix;
+		final byte[] sat;
+		final float[] heading;
+		final float[] speed;
+		final float[] accuracy;
+		final byte[] recorded;
+
+		Columns(int capacity) {
+			this(new double[capacity], new double[capacity], new long[capacity],
+					new float[capacity], new byte[capacity], new byte[capacity],
+					new float[capacity], new float[capacity], new float[capacity],
+					new byte[capacity]);
+		}
+
+		Columns(double[] lat, double[] lon, long[] time, float[] ele,
+				byte[] fix, byte[] sat, float[] heading, float[] speed,
+				float[] accuracy, byte[] recorded) {
+			this.lat = lat;
+			this.lon = lon;
+			this.time = time;
+			this.ele = ele;
+			this.fix = fix;
+			this.sat = sat;
+			this.heading = heading;
+			this.speed = speed;
+			this.accuracy = accuracy;
+			this.recorded = recorded;
+		}
+
+		int capacity() {
+			return lat.length;
+		}
+
+		Columns copyOf(int capacity) {
+			return new Columns(Arrays.copyOf(lat, capacity),
+					Arrays.copyOf(lon, capacity), Arrays.copyOf(time, capacity),
+					Arrays.copyOf(ele, capacity), Arrays.copyOf(fix, capacity),
+					Arrays.copyOf(sat, capacity), Arrays.copyOf(heading, capacity),
+					Arrays.copyOf(speed, capacity), Arrays.copyOf(accuracy, capacity),
+					Arrays.copyOf(recorded, capacity));
+		}
+	}
+
+	private volatile Columns columns;
+
+	private volatile int size;
+
+	public TrackStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public TrackStore(int capacity) {
+		columns = new Columns(capacity);
+	}
+
+	/**
+	 * Takes over filled columns, used when loading a {@link TrackFile}.
+	 */
+	TrackStore(double[] lat, double[] lon, long[] time, float[] ele,
+			byte[] fix, byte[] sat, float[] heading, float[] speed,
+			float[] accuracy, byte[] recorded, int size) {
+		this.columns = new Columns(lat, lon, time, ele, fix, sat, heading,
+				speed, accuracy, recorded);
+		this.size = size;
+	}
+
+	/**
+	 * Appends a point and returns its index.
+	 */
+	public int add(double lat, double lon, long time, float ele, byte fix,
+			byte sat) {
+		return add(lat, lon, time, ele, fix, sat, 0, 0, 0, (byte) 0);
+	}
+
+	/**
+	 * Appends a point with the speed, heading and accuracy it was recorded
+	 * with, if any.
+	 */
+	public int add(GpxTrackPoint point) {
+		int index = stage(point);
+		size = index + 1;
+		return index;
+	}
+
+	/**
+	 * Writes a point after the last one without making it visible to
+	 * readers, returns its index. Until {@link #publish()} the writer can
+	 * still set its heading and speed.
+	 */
+	public int stage(GpxTrackPoint point) {
+		return write(point.getLat(), point.getLon(), point.getTime(),
+				point.getEle(), point.getFix(), point.getSat(),
+				(float) point.getHeading(), (float) point.getSpeed(),
+				point.getAccuracy(), point.getRecorded());
+	}
+
+	/**
+	 * Makes the staged point visible to readers.
+	 */
+	public void publish() {
+		size = size + 1;
+	}
+
+	private int add(double lat, double lon, long time, float ele, byte fix,
+			byte sat, float heading, float speed, float accuracy, byte recorded) {
+		int index = write(lat, lon, time, ele, fix, sat, heading, speed, accuracy, recorded);
+		size = index + 1;
+		return index;
+	}
+
+	private int write(double lat, double lon, long time, float ele, byte fix,
+			byte sat, float heading, float speed, float accuracy, byte recorded) {
+		int index = size;
+		Columns c = ensureCapacity(index + 1);
+
+		c.lat[index] = lat;
+		c.lon[index] = lon;
+		c.time[index] = time;
+		c.ele[index] = ele;
+		c.fix[index] = fix;
+		c.sat[index] = sat;
+		c.heading[index] = heading;
+		c.speed[index] = speed;
+		c.accuracy[index] = accuracy;
+		c.recorded[index] = recorded;
+		return index;
+	}
+
+	/**
+	 * Appends all points of another store, kinematics included.
+	 */
+	public void addAll(TrackStore other) {
+		int count = other.size();
+		Columns from = other.columns;
+		int index = size;
+		Columns c = ensureCapacity(index + count);
+
+		System.arraycopy(from.lat, 0, c.lat, index, count);
+		System.arraycopy(from.lon, 0, c.lon, index, count);
+		System.arraycopy(from.time, 0, c.time, index, count);
+		System.arraycopy(from.ele, 0, c.ele, index, count);
+		System.arraycopy(from.fix, 0, c.fix, index, count);
+		System.arraycopy(from.sat, 0, c.sat, index, count);
+		System.arraycopy(from.heading, 0, c.heading, index, count);
+		System.arraycopy(from.speed, 0, c.speed, index, count);
+		System.arraycopy(from.accuracy, 0, c.accuracy, index, count);
+		System.arraycopy(from.recorded, 0, c.recorded, index, count);
+
+		size = index + count;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double getLat(int index) {
+		return columns.lat[index];
+	}
+
+	public double getLon(int index) {
+		return columns.lon[index];
+	}
+
+	public long getTime(int index) {
+		return columns.time[index];
+	}
+
+	public float getEle(int index) {
+		return columns.ele[index];
+	}
+
+	public byte getFix(int index) {
+		return columns.fix[index];
+	}
+
+	public byte getSat(int index) {
+		return columns.sat[index];
+	}
+
+	public float getHeading(int index) {
+		return columns.heading[index];
+	}
+
+	/**
+	 * Writer only.
+	 */
+	public void setHeading(int index, float heading) {
+		columns.heading[index] = heading;
+	}
+
+	public float getSpeed(int index) {
+		return columns.speed[index];
+	}
+
+	/**
+	 * Writer only.
+	 */
+	public void setSpeed(int index, float speed) {
+		columns.speed[index] = speed;
+	}
+
+	/**
+	 * Recorded horizontal accuracy in metres, only meaningful with
+	 * {@link #RECORDED_ACCURACY}.
+	 */
+	public float getAccuracy(int index) {
+		return columns.accuracy[index];
+	}
+
+	/**
+	 * Returns the RECORDED_* bits of the values the point came with.
+	 */
+	public byte getRecorded(int index) {
+		return columns.recorded[index];
+	}
+
+	/**
+	 * Returns columns with room for the given number of points, copied into
+	 * larger ones and published if the current ones are too small.
+	 */
+	private Columns ensureCapacity(int capacity) {
+		Columns c = columns;
+		if (capacity <= c.capacity())
+			return c;
+
+		int newCapacity = Math.max(capacity, c.capacity() + (c.capacity() >> 1));
+		c = c.copyOf(newCapacity);
+		columns = c;
+		return c;
+	}
+
+	/**
+	 * Maps the GPX fixType values (none, 2d, 3d, dgps, pps) to a byte code.
+	 */
+	public static byte encodeFix(char[] ch, int start, int length) {
+		int end = start + length;
+		while (start < end && ch[start] <= ' ')
+			start++;
+		while (end > start && ch[end - 1] <= ' ')
+			end--;
+
+		if (matches(ch, start, end, "none"))
+			return FIX_NONE;
+		if (matches(ch, start, end, "2d"))
+			return FIX_2D;
+		if (matches(ch, start, end, "3d"))
+			return FIX_3D;
+		if (matches(ch, start, end, "dgps"))
+			return FIX_DGPS;
+		if (matches(ch, start, end, "pps"))
+			return FIX_PPS;
+		return FIX_UNKNOWN;
+	}
+
+	public static byte encodeFix(String value) {
+		if (value == null)
+			return FIX_UNKNOWN;
+		return encodeFix(value.toCharArray(), 0, value.length());
+	}
+
+	/**
+	 * Returns the satellite count, or {@link #SAT_UNKNOWN} if the value is
+	 * missing or not a number.
+	 */
+	public static byte encodeSat(char[] ch, int start, int length) {
+		int end = start + length;
+		while (start < end && ch[start] <= ' ')
+			start++;
+		while (end > start && ch[end - 1] <= ' ')
+			end--;
+
+		if (start == end)
+			return SAT_UNKNOWN;
+
+		int sat = 0;
+		for (int i = start; i < end; i++) {
+			char c = ch[i];
+			if (c < '0' || c > '9')
+				return SAT_UNKNOWN;
+			sat = Math.min(sat * 10 + (c - '0'), Byte.MAX_VALUE);
+		}
+		return (byte) sat;
+	}
+
+	public static byte encodeSat(String value) {
+		if (value == null)
+			return SAT_UNKNOWN;
+		return encodeSat(value.toCharArray(), 0, value.length());
+	}
+
+	private static boolean matches(char[] ch, int start, int end, String value) {
+		if (end - start != value.length())
+			return false;
+		for (int i = 0; i < value.length(); i++) {
+			if (Character.toLowerCase(ch[start + i]) != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+}
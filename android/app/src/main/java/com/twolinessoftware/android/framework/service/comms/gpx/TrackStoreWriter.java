@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+/**
+ * Parser listener that appends every point to a {@link TrackStore}. Errors
+ * are passed on to another listener.
+ */
+public class TrackStoreWriter implements GpxSaxParserListener {
+
+	private final TrackStore store;
+	private final GpxSaxParserListener errorListener;
+	private boolean failed;
+
+	public TrackStoreWriter(TrackStore store, GpxSaxParserListener errorListener) {
+		this.store = store;
+		this.errorListener = errorListener;
+	}
+
+	public TrackStore getStore() {
+		return store;
+	}
+
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	@Override
+	public void onGpxPoint(GpxTrackPoint item) {
+		store.add(item);
+	}
+
+	@Override
+	public void onGpxError(String message) {
+		failed = true;
+		if (errorListener != null)
+			errorListener.onGpxError(message);
+	}
+
+	@Override
+	public void onGpxStart() {
+	}
+
+	@Override
+	public void onGpxEnd() {
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import java.util.Arrays;
+
+/**
+ * Sorted time index over a {@link TrackStore} for seeking. It holds every
+ * point whose timestamp is later than all timestamps before it, so the
+ * times are strictly increasing even when the track goes back in time now
+ * and then, and a lookup is a binary search over a primitive array.
+ *
+ * The index follows a track that is still being parsed: {@link #update()}
+ * only looks at points added since the previous call.
+ */
+public class TrackTimeIndex {
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private final TrackStore track;
+
+	private long[] times = new long[DEFAULT_CAPACITY];
+	private int[] indices = new int[DEFAULT_CAPACITY];
+	private int count;
+	private int scanned;
+
+	public TrackTimeIndex(TrackStore track) {
+		this.track = track;
+	}
+
+	/**
+	 * Indexes the points added to the track since the last call.
+	 */
+	public void update() {
+		int size = track.size();
+		for (; scanned < size; scanned++) {
+			long time = track.getTime(scanned);
+			if (time == GpxTime.INVALID || (count > 0 && time <= times[count - 1]))
+				continue;
+
+			if (count == times.length) {
+				int capacity = count + (count >> 1);
+				times = Arrays.copyOf(times, capacity);
+				indices = Arrays.copyOf(indices, capacity);
+			}
+			times[count] = time;
+			indices[count] = scanned;
+			count++;
+		}
+	}
+
+	/**
+	 * Whether any indexed point has a timestamp.
+	 */
+	public boolean hasTimes() {
+		return count > 0;
+	}
+
+	public long getFirstTime() {
+		return count > 0 ? times[0] : GpxTime.INVALID;
+	}
+
+	public long getLastTime() {
+		return count > 0 ? times[count - 1] : GpxTime.INVALID;
+	}
+
+	/**
+	 * Returns the index of the first point at or after the given time, or -1
+	 * if the track ends before it.
+	 */
+	public int indexAt(long time) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[mid] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low < count ? indices[low] : -1;
+	}
+
+}
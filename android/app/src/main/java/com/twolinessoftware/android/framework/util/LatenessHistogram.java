@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How late events happened against their schedule, in power of two
+ * millisecond buckets: under 1ms, 1-2ms, 2-4ms and so on up to 32s and
+ * more. Recording is cheap and allocation free, one thread records while
+ * others may read.
+ */
+public class LatenessHistogram {
+
+	private static final int BUCKETS = 17;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	public void record(long latenessNanos) {
+		long nanos = Math.max(0, latenessNanos);
+		long millis = nanos / 1000000L;
+		int bucket = millis == 0 ? 0 : Math.min(BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(millis));
+
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		if (nanos > maxNanos.get())
+			maxNanos.set(nanos);
+	}
+
+	/**
+	 * Counts an event that was dropped instead of happening late.
+	 */
+	public void recordSkipped() {
+		skipped.incrementAndGet();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+		skipped.set(0);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+	}
+
+	/**
+	 * Smallest bucket bound in ms below which the given fraction of the
+	 * events fall.
+	 */
+	public long getPercentileMillis(double fraction) {
+		long n = count.get();
+		long wanted = (long) Math.ceil(n * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= wanted && seen > 0)
+				return 1L << i;
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("count=").append(getCount());
+		sb.append(" skipped=").append(getSkipped());
+		sb.append(" mean=").append(String.format("%.2f", getMeanMillis())).append("ms");
+		sb.append(" p99<").append(getPercentileMillis(0.99)).append("ms");
+		sb.append(" max=").append(getMaxNanos() / 1000000L).append("ms");
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = buckets.get(i);
+			if (n == 0)
+				continue;
+			sb.append(" [").append(i == 0 ? 0 : 1L << (i - 1)).append(',');
+			sb.append(i == BUCKETS - 1 ? "inf" : String.valueOf(1L << i)).append(")=").append(n);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer ring of preallocated slots. The
+ * producer fills a slot obtained from {@link #claim()} and hands it over
+ * with {@link #publish()}; the consumer reads the slot returned by
+ * {@link #peek()} and gives it back with {@link #release()}. All four calls
+ * are wait-free and nothing is allocated after construction.
+ *
+ * The counters are written with ordered stores, so everything written to a
+ * slot before publish() is visible to the consumer that sees it, and the
+ * consumer is done with a slot before the producer can claim it again.
+ */
+public class SlotRing<T> {
+
+	public interface Factory<T> {
+		T create();
+	}
+
+	private final Object[] slots;
+	private final int mask;
+
+	// Next slot to read and next slot to write, shared between the threads
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	// Producer side copies
+	private long producerTail;
+	private long cachedHead;
+
+	// Consumer side copies
+	private long consumerHead;
+	private long cachedTail;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public SlotRing(int capacity, Factory<T> factory) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		slots = new Object[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = factory.create();
+		mask = size - 1;
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Producer: returns the next slot to fill, or null if the ring is full.
+	 * Claiming again before publishing returns the same slot.
+	 */
+	@SuppressWarnings("unchecked")
+	public T claim() {
+		if (producerTail - cachedHead >= slots.length) {
+			cachedHead = head.get();
+			if (producerTail - cachedHead >= slots.length)
+				return null;
+		}
+		return (T) slots[(int) producerTail & mask];
+	}
+
+	/**
+	 * Producer: hands the claimed slot to the consumer.
+	 */
+	public void publish() {
+		producerTail++;
+		tail.lazySet(producerTail);
+	}
+
+	/**
+	 * Consumer: returns the oldest published slot, or null if there is none.
+	 */
+	public T peek() {
+		return peek(0);
+	}
+
+	/**
+	 * Consumer: returns the published slot the given distance behind the
+	 * oldest one, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public T peek(int ahead) {
+		long position = consumerHead + ahead;
+		if (position >= cachedTail) {
+			cachedTail = tail.get();
+			if (position >= cachedTail)
+				return null;
+		}
+		return (T) slots[(int) position & mask];
+	}
+
+	/**
+	 * Consumer: returns the slot from {@link #peek()} to the producer.
+	 */
+	public void release() {
+		consumerHead++;
+		head.lazySet(consumerHead);
+	}
+
+	/**
+	 * Number of published slots not yet released, exact only when called
+	 * from a quiet ring.
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that GpxMappedParser, whether it scans the bytes itself or falls
+ * back, delivers the same points as GpxSaxParser, column by column.
+ */
+public class GpxMappedParserTest {
+
+	private static final String SAMPLE_TRACK = "../../test/sample_track.gpx";
+
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<gpx version=\"1.1\" creator=\"test\" xmlns=\"http://www.topografix.com/GPX/1/1\"\n"
+			+ "  xmlns:gpxtpx=\"http://www.garmin.com/xmlschemas/TrackPointExtension/v2\"\n"
+			+ "  xmlns:rmc=\"urn:rmc\">\n";
+
+	private final Random random = new Random(20110316);
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("track", ".gpx");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void sampleTrack() throws IOException {
+		File sample = new File(SAMPLE_TRACK);
+		Assume.assumeTrue(sample.isFile());
+		assertAgree(sample);
+	}
+
+	@Test
+	public void plainTracks() throws IOException {
+		for (int i = 0; i < 20; i++)
+			assertAgree(HEADER + track(200, false) + "</gpx>\n");
+	}
+
+	@Test
+	public void otherElementsAroundTheTrack() throws IOException {
+		assertAgree(HEADER
+				+ "<metadata><name>Run</name><desc><![CDATA[<trkpt lat=\"1\" lon=\"1\"/>]]></desc>"
+				+ "<time>2011-03-16T08:00:00Z</time></metadata>\n"
+				+ "<wpt lat=\"45.1\" lon=\"7.1\"><ele>300</ele><name>Start</name></wpt>\n"
+				+ "<rte><name>Plan</name><rtept lat=\"45.2\" lon=\"7.2\"/><rtept lat=\"45.3\" lon=\"7.3\"/></rte>\n"
+				+ "<!-- <trk><trkseg><trkpt lat=\"2\" lon=\"2\"/></trkseg></trk> -->\n"
+				+ track(50, false)
+				+ "<wpt lat=\"45.4\" lon=\"7.4\"/>\n"
+				+ track(50, false)
+				+ "</gpx>\n");
+	}
+
+	@Test
+	public void commentsAndCdataBetweenPoints() throws IOException {
+		assertAgree(HEADER + "<trk><name>A &amp; B</name><trkseg>\n"
+				+ "<!-- a comment with <trkpt lat=\"1\" lon=\"1\"/> in it -->\n"
+				+ point(45.0, 7.0, "<ele>10</ele>")
+				+ "<![CDATA[ <trkpt lat=\"3\" lon=\"3\"/> ]]>\n"
+				+ "<?processing instruction?>\n"
+				+ point(45.001, 7.001, "<ele>11</ele><!-- inside --><time>2011-03-16T08:00:01Z</time>")
+				+ "</trkseg></trk></gpx>\n");
+	}
+
+	@Test
+	public void attributeForms() throws IOException {
+		assertAgree(HEADER + "<trk><trkseg>\n"
+				+ "<trkpt lat='45.0' lon='7.0'><ele>1</ele></trkpt>\n"
+				+ "<trkpt lon=\"7.001\" lat=\"45.001\"><ele>2</ele></trkpt>\n"
+				+ "<trkpt\n  lat = \"45.002\"\n  lon = '7.002' ><ele>3</ele></trkpt>\n"
+				+ "<trkpt lat=\"45.003\" lon=\"7.003\"/>\n"
+				+ "<trkpt lat=\"45.004\" lon=\"7.004\" />\n"
+				+ "<trkpt lat=\"4.5005e1\" lon=\"+7.005\"></trkpt>\n"
+				+ "</trkseg></trk></gpx>\n");
+	}
+
+	@Test
+	public void fieldForms() throws IOException {
+		assertAgree(HEADER + "<trk><trkseg>\n"
+				+ point(45.0, 7.0, "<ele></ele><time></time><sat/><fix/>")
+				+ point(45.001, 7.001, "<ele> </ele><time>\n</time><sat> </sat><fix> </fix>")
+				+ point(45.002, 7.002, "<ele>\n  12.5\n</ele><time> 2011-03-16T08:00:02Z </time>")
+				+ point(45.003, 7.003, "<time>2011-03-16T08:00:03.250Z</time><sat>?</sat><fix>bad</fix>")
+				+ point(45.004, 7.004, "<time>2011-03-16T10:00:04+02:00</time><sat>300</sat><fix>DGPS</fix>")
+				+ point(45.005, 7.005, "<time>2011-02-30T08:00:05Z</time><hdop>1.5</hdop>")
+				+ point(45.006, 7.006, "<extensions><gpxtpx:TrackPointExtension>"
+						+ "<gpxtpx:speed>abc</gpxtpx:speed><gpxtpx:course>-5</gpxtpx:course>"
+						+ "</gpxtpx:TrackPointExtension><accuracy/></extensions>")
+				+ point(45.007, 7.007, "<unknown><ele>99</ele></unknown><name>x</name>")
+				+ "</trkseg></trk></gpx>\n");
+	}
+
+	@Test
+	public void entitiesAndCdataInsidePoints() throws IOException {
+		// The scanner hands these to SAX after the points it has delivered
+		assertAgree(HEADER + track(30, false) + "<trk><trkseg>\n"
+				+ point(45.0, 7.0, "<ele>&#49;2</ele>")
+				+ point(45.001, 7.001, "<ele><![CDATA[13]]></ele>")
+				+ point(45.002, 7.002, "<ele>14</ele>")
+				+ "</trkseg></trk>" + track(30, false) + "</gpx>\n");
+	}
+
+	@Test
+	public void extensions() throws IOException {
+		for (int i = 0; i < 10; i++)
+			assertAgree(HEADER + track(200, true) + "</gpx>\n");
+	}
+
+	@Test
+	public void utf16() throws IOException {
+		String xml = (HEADER + track(50, true) + "</gpx>\n").replace("UTF-8", "UTF-16");
+		write(xml.getBytes("UTF-16"));
+		assertAgree(file);
+	}
+
+	private String track(int points, boolean extensions) {
+		StringBuilder builder = new StringBuilder("<trk><name>Track</name>\n");
+		double lat = (random.nextDouble() * 2 - 1) * 80;
+		double lon = (random.nextDouble() * 2 - 1) * 180;
+		long time = 1300000000000L + random.nextInt(1000000) * 1000L;
+		for (int s = 0; s < 2; s++) {
+			builder.append("<trkseg>\n");
+			for (int i = 0; i < points / 2; i++) {
+				lat += (random.nextDouble() - 0.5) * 0.001;
+				lon += (random.nextDouble() - 0.5) * 0.001;
+				time += 1000 + random.nextInt(2) * 500;
+
+				StringBuilder fields = new StringBuilder();
+				if (random.nextInt(4) != 0)
+					fields.append("<ele>").append(format(random.nextDouble() * 1000, 1)).append("</ele>");
+				if (random.nextInt(8) != 0)
+					fields.append("<time>").append(time(time)).append("</time>");
+				if (random.nextBoolean())
+					fields.append("<fix>").append(random.nextBoolean() ? "3d" : "2d").append("</fix>");
+				if (random.nextBoolean())
+					fields.append("<sat>").append(random.nextInt(14)).append("</sat>");
+				if (random.nextInt(3) == 0)
+					fields.append("<hdop>").append(format(random.nextDouble() * 5, 1)).append("</hdop>");
+				if (extensions)
+					fields.append(extension());
+
+				builder.append(point(lat, lon, fields.toString()));
+			}
+			builder.append("</trkseg>\n");
+		}
+		return builder.append("</trk>\n").toString();
+	}
+
+	private String extension() {
+		switch (random.nextInt(4)) {
+		case 0:
+			return "<extensions><gpxtpx:TrackPointExtension><gpxtpx:speed>"
+					+ format(random.nextDouble() * 30, 2) + "</gpxtpx:speed><gpxtpx:course>"
+					+ format(random.nextDouble() * 360, 1)
+					+ "</gpxtpx:course></gpxtpx:TrackPointExtension></extensions>";
+		case 1:
+			return "<extensions><rmc:speed>" + format(random.nextDouble() * 50, 1)
+					+ "</rmc:speed><accuracy>" + format(random.nextDouble() * 20, 1)
+					+ "</accuracy></extensions>";
+		case 2:
+			return "<speed>" + format(random.nextDouble() * 30, 2) + "</speed><course>"
+					+ format(random.nextDouble() * 360, 1) + "</course>";
+		default:
+			return "<extensions><hacc>" + format(random.nextDouble() * 20, 1) + "</hacc></extensions>";
+		}
+	}
+
+	private static String point(double lat, double lon, String fields) {
+		return "<trkpt lat=\"" + format(lat, 7) + "\" lon=\"" + format(lon, 7) + "\">"
+				+ fields + "</trkpt>\n";
+	}
+
+	private static String format(double value, int decimals) {
+		return String.format(Locale.US, "%." + decimals + "f", value);
+	}
+
+	private static String time(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(millis));
+	}
+
+	private void assertAgree(String xml) throws IOException {
+		write(xml.getBytes("UTF-8"));
+		assertAgree(file);
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void assertAgree(File file) throws IOException {
+		Collector expected = new Collector();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			new GpxSaxParser(expected).parse(in);
+		} finally {
+			in.close();
+		}
+
+		Collector actual = new Collector();
+		new GpxMappedParser(actual).parse(file);
+
+		assertNull(expected.error, expected.error);
+		assertNull(actual.error, actual.error);
+		assertTrue(expected.ended && actual.ended);
+
+		TrackStore a = expected.store;
+		TrackStore b = actual.store;
+		assertTrue(a.size() > 0);
+		assertEquals(a.size(), b.size());
+		for (int i = 0; i < a.size(); i++) {
+			String at = "point " + i;
+			assertEquals(at + " lat", a.getLat(i), b.getLat(i), 0);
+			assertEquals(at + " lon", a.getLon(i), b.getLon(i), 0);
+			assertEquals(at + " time", a.getTime(i), b.getTime(i));
+			assertEquals(at + " ele", a.getEle(i), b.getEle(i), 0);
+			assertEquals(at + " fix", a.getFix(i), b.getFix(i));
+			assertEquals(at + " sat", a.getSat(i), b.getSat(i));
+			assertEquals(at + " heading", a.getHeading(i), b.getHeading(i), 0);
+			assertEquals(at + " speed", a.getSpeed(i), b.getSpeed(i), 0);
+			assertEquals(at + " accuracy", a.getAccuracy(i), b.getAccuracy(i), 0);
+			assertEquals(at + " recorded", a.getRecorded(i), b.getRecorded(i));
+		}
+	}
+
+	private static class Collector implements GpxSaxParserListener {
+
+		final TrackStore store = new TrackStore();
+		String error;
+		boolean ended;
+
+		@Override
+		public void onGpxPoint(GpxTrackPoint item) {
+			store.add(item);
+		}
+
+		@Override
+		public void onGpxError(String message) {
+			if (error == null)
+				error = "Parse failed: " + message;
+		}
+
+		@Override
+		public void onGpxStart() {
+		}
+
+		@Override
+		public void onGpxEnd() {
+			ended = true;
+		}
+
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks GpxNumber bit for bit against Double.parseDouble. The random
+ * inputs use a fixed seed so a failure can be reproduced.
+ */
+public class GpxNumberTest {
+
+	private static final int ROUNDS = 200000;
+
+	private final Random random = new Random(20110316);
+
+	@Test
+	public void fixedInputs() {
+		String[] inputs = { "0", "-0", "0.0", "-0.0", "1", "-1", "+1", ".5",
+				"5.", "007", "45.5012345", "-122.0840575", "1e0", "1E5",
+				"1e-5", "1.5e+3", "9007199254740992", "9007199254740993",
+				"123456789012345678901234567890", "0.1", "0.2", "0.3",
+				"2.2250738585072011e-308", "2.2250738585072012e-308",
+				"4.9e-324", "2.4703282292062327e-324", "1.7976931348623157e308",
+				"1.7976931348623159e308", "1e400", "1e-400",
+				"7.3177701707893310e+15", "9.5e-1", "1e23", "8.41e21" };
+		for (String input : inputs)
+			assertParses(input);
+	}
+
+	@Test
+	public void malformedInputs() {
+		String[] inputs = { "", "-", "+", ".", "e5", "1e", "1e+", "1.2.3",
+				"1-2", "abc", "1,5", "--1" };
+		for (String input : inputs)
+			assertParses(input);
+	}
+
+	@Test
+	public void shortestRepresentations() {
+		for (int i = 0; i < ROUNDS; i++)
+			assertParses(Double.toString(Double.longBitsToDouble(random.nextLong())));
+	}
+
+	@Test
+	public void coordinates() {
+		for (int i = 0; i < ROUNDS; i++) {
+			double value = (random.nextDouble() * 2 - 1) * 180;
+			int decimals = random.nextInt(10);
+			assertParses(String.format(Locale.US, "%." + decimals + "f", value));
+		}
+	}
+
+	@Test
+	public void digitStrings() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < ROUNDS; i++) {
+			builder.setLength(0);
+			if (random.nextBoolean())
+				builder.append('-');
+			int digits = 1 + random.nextInt(25);
+			int point = random.nextInt(digits + 1);
+			for (int d = 0; d < digits; d++) {
+				if (d == point)
+					builder.append('.');
+				builder.append((char) ('0' + random.nextInt(10)));
+			}
+			if (random.nextInt(3) == 0)
+				builder.append('e').append(random.nextInt(700) - 350);
+			assertParses(builder.toString());
+		}
+	}
+
+	@Test
+	public void halfwayCases() {
+		// Exactly between two doubles and just either side of that
+		for (int i = 0; i < ROUNDS / 10; i++) {
+			double value = Math.scalb(1 + random.nextDouble(), random.nextInt(200) - 100);
+			BigDecimal half = new BigDecimal(value).add(new BigDecimal(Math.ulp(value)).divide(BigDecimal.valueOf(2)));
+			BigDecimal nudge = half.ulp();
+			assertParses(half.toString());
+			assertParses(half.add(nudge).toString());
+			assertParses(half.subtract(nudge).toString());
+		}
+	}
+
+	@Test
+	public void rangeInsideLargerArray() {
+		char[] ch = "<lat>45.5012345</lat>".toCharArray();
+		assertEquals(45.5012345, GpxNumber.parseDouble(ch, 5, 10), 0);
+	}
+
+	private static void assertParses(String input) {
+		double expected;
+		try {
+			expected = Double.parseDouble(input);
+		} catch (NumberFormatException e) {
+			try {
+				double actual = GpxNumber.parseDouble(input.toCharArray(), 0, input.length());
+				fail("\"" + input + "\" parsed to " + actual);
+			} catch (NumberFormatException expectedFailure) {
+				// Both reject it
+			}
+			return;
+		}
+
+		double actual = GpxNumber.parseDouble(input.toCharArray(), 0, input.length());
+		assertEquals("\"" + input + "\"", Double.doubleToRawLongBits(expected),
+				Double.doubleToRawLongBits(actual));
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class GpxTimeTest {
+
+	@Test
+	public void zonesAndFractions() {
+		long expected = utc(2011, 3, 16, 8, 30, 15) + 250;
+		assertEquals(expected, GpxTime.parse("2011-03-16T08:30:15.250Z"));
+		assertEquals(expected, GpxTime.parse(" 2011-03-16T10:30:15.2501+02:00 "));
+		assertEquals(expected, GpxTime.parse("2011-03-16T03:30:15,25-0500"));
+		assertEquals(expected - 250, GpxTime.parse("2011-03-16T09:30:15+01"));
+		assertEquals(expected - 250, GpxTime.parse("2011-03-16 08:30:15"));
+	}
+
+	@Test
+	public void lastDayOfEachMonth() {
+		int[] days = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+		for (int month = 1; month <= 12; month++) {
+			String prefix = String.format("2011-%02d-", month);
+			assertEquals(prefix + days[month - 1], utc(2011, month, days[month - 1], 0, 0, 0),
+					GpxTime.parse(prefix + days[month - 1] + "T00:00:00Z"));
+			assertEquals(prefix + (days[month - 1] + 1), GpxTime.INVALID,
+					GpxTime.parse(prefix + (days[month - 1] + 1) + "T00:00:00Z"));
+		}
+	}
+
+	@Test
+	public void leapYears() {
+		assertEquals(utc(2012, 2, 29, 0, 0, 0), GpxTime.parse("2012-02-29T00:00:00Z"));
+		assertEquals(utc(2000, 2, 29, 0, 0, 0), GpxTime.parse("2000-02-29T00:00:00Z"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2011-02-29T00:00:00Z"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("1900-02-29T00:00:00Z"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2012-02-30T00:00:00Z"));
+	}
+
+	@Test
+	public void endOfDay() {
+		assertEquals(utc(2011, 3, 17, 0, 0, 0), GpxTime.parse("2011-03-16T24:00:00Z"));
+		assertEquals(utc(2011, 3, 17, 0, 0, 0), GpxTime.parse("2011-03-16T24:00:00.000Z"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2011-03-16T24:30:00Z"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2011-03-16T24:00:01Z"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2011-03-16T24:00:00.5Z"));
+	}
+
+	@Test
+	public void zoneLimits() {
+		assertEquals(utc(2011, 3, 15, 14, 0, 0), GpxTime.parse("2011-03-16T08:00:00+18:00"));
+		assertEquals(utc(2011, 3, 16, 8, 59, 0), GpxTime.parse("2011-03-16T08:00:00-00:59"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2011-03-16T08:00:00+19:00"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2011-03-16T08:00:00+99:99"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2011-03-16T08:00:00+01:60"));
+		assertEquals(GpxTime.INVALID, GpxTime.parse("2011-03-16T08:00:00-0560"));
+	}
+
+	@Test
+	public void invalid() {
+		String[] values = { "", "2011-03-16", "2011-00-16T08:30:15Z",
+				"2011-13-16T08:30:15Z", "2011-03-00T08:30:15Z", "2011-03-16T25:30:15Z",
+				"2011-03-16T08:60:15Z", "2011-03-16T08:30:15.Z", "2011-03-16T08:30:15+1",
+				"2011-03-16X08:30:15Z", "2011/03/16T08:30:15Z", "2011-03-16T08:30:15Zjunk" };
+		for (String value : values)
+			assertEquals(value, GpxTime.INVALID, GpxTime.parse(value));
+		assertEquals(GpxTime.INVALID, GpxTime.parse((String) null));
+	}
+
+	private static long utc(int year, int month, int day, int hour, int minute, int second) {
+		Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute, second);
+		return calendar.getTimeInMillis();
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Compares against Vincenty's inverse solution on WGS84. TrackKinematics
+ * works on a sphere, which is up to about half a percent off in distance,
+ * worst north-south near the equator, and a tenth of a degree or so off in
+ * heading, so the tolerances are that wide. Points are a second apart, so
+ * the speed is the distance in metres.
+ */
+public class TrackKinematicsTest {
+
+	private static final double DISTANCE_TOLERANCE = 0.007;
+	private static final double HEADING_TOLERANCE = 0.2;
+
+	private static final long START = 1300000000000L;
+
+	@Test
+	public void flindersPeakToBuninyong() {
+		// The worked example in Vincenty's paper
+		assertStep(-dms(37, 57, 3.72030), dms(144, 25, 29.52440),
+				-dms(37, 39, 10.15610), dms(143, 55, 35.38390),
+				54972.271, 306.868158);
+	}
+
+	@Test
+	public void equator() {
+		assertStep(0, 10, 0, 10.01, 1113.1949, 90);
+		assertStep(0, 10, 0.01, 10, 1105.7428, 0);
+		assertStep(0, 10.01, 0, 10, 1113.1949, 270);
+	}
+
+	@Test
+	public void midLatitude() {
+		assertStep(45, 7, 45.01, 7.01, 1362.5724, 35.349391);
+		assertStep(45, 7, 44.99, 6.99, 1362.6502, 215.361213);
+	}
+
+	@Test
+	public void highLatitude() {
+		assertStep(80, 20, 80.002, 20.01, 295.7618, 40.963882);
+	}
+
+	@Test
+	public void southernHemisphere() {
+		assertStep(-33.9, 18.4, -33.91, 18.41, 1444.2068, 140.180879);
+	}
+
+	@Test
+	public void acrossTheAntimeridian() {
+		assertStep(10, 179.9999, 10, -179.9999, 21.9279, 89.999983);
+		assertStep(-20, -179.9995, -20.0002, 179.9995, 106.9636, 258.053562);
+	}
+
+	@Test
+	public void tinyDisplacement() {
+		// About a centimetre
+		assertStep(51.5, -0.12, 51.5000001, -0.12000008, 0.0124, 333.466473);
+	}
+
+	@Test
+	public void eitherSideOfShortStep() {
+		assertStep(45, 7, 45.028, 7.028, 3815.0067, 35.338749);
+		assertStep(45, 7, 45.03, 7.03, 4087.4838, 35.337566);
+	}
+
+	@Test
+	public void longSteps() {
+		assertStep(51.5, -0.12, 48.85, 2.35, 343492.8154, 148.140664);
+		assertStep(60, 5, 70, 25, 1446543.9376, 31.449888);
+	}
+
+	@Test
+	public void noMovementKeepsHeading() {
+		TrackStore track = new TrackStore();
+		track.add(45, 7, START, 0, TrackStore.FIX_UNKNOWN, TrackStore.SAT_UNKNOWN);
+		track.add(45.01, 7.01, START + 1000, 0, TrackStore.FIX_UNKNOWN, TrackStore.SAT_UNKNOWN);
+		track.add(45.01, 7.01, START + 2000, 0, TrackStore.FIX_UNKNOWN, TrackStore.SAT_UNKNOWN);
+		TrackKinematics.compute(track, 0, track.size());
+
+		assertEquals(track.getHeading(1), track.getHeading(2), 0);
+		assertEquals(0, track.getSpeed(2), 0);
+	}
+
+	private static void assertStep(double lat1, double lon1, double lat2, double lon2,
+			double distance, double heading) {
+		TrackStore track = new TrackStore();
+		track.add(lat1, lon1, START, 0, TrackStore.FIX_UNKNOWN, TrackStore.SAT_UNKNOWN);
+		track.add(lat2, lon2, START + 1000, 0, TrackStore.FIX_UNKNOWN, TrackStore.SAT_UNKNOWN);
+		TrackKinematics.compute(track, 0, track.size());
+
+		String step = lat1 + "," + lon1 + " -> " + lat2 + "," + lon2;
+		assertEquals(step + " distance", distance, track.getSpeed(1), distance * DISTANCE_TOLERANCE);
+
+		double error = track.getHeading(1) - heading;
+		error -= 360 * Math.floor((error + 180) / 360);
+		assertEquals(step + " heading", 0, error, HEADING_TOLERANCE);
+	}
+
+	private static double dms(int degrees, int minutes, double seconds) {
+		return degrees + minutes / 60.0 + seconds / 3600;
+	}
+
+}
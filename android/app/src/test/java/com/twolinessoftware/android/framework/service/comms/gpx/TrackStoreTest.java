@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gpx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TrackStoreTest {
+
+	private static final int COUNT = 2000000;
+
+	@Test
+	public void growsAndKeepsPoints() {
+		TrackStore track = new TrackStore(1);
+		for (int i = 0; i < 1000; i++)
+			track.add(i, -i, i + 1, i, TrackStore.FIX_3D, (byte) 7);
+
+		TrackStore all = new TrackStore(1);
+		all.addAll(track);
+		all.addAll(track);
+
+		assertEquals(2000, all.size());
+		for (int i = 0; i < 2000; i++) {
+			int point = i % 1000;
+			assertEquals(point, all.getLat(i), 0);
+			assertEquals(-point, all.getLon(i), 0);
+			assertEquals(point + 1, all.getTime(i));
+			assertEquals(TrackStore.FIX_3D, all.getFix(i));
+			assertEquals(7, all.getSat(i));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void readerSeesPublishedPointsWhileGrowing() throws Exception {
+		// Tiny start so the columns are replaced many times under the reader
+		final TrackStore track = new TrackStore(1);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		Thread reader = new Thread("reader") {
+			@Override
+			public void run() {
+				int checked = 0;
+				while (checked < COUNT) {
+					int size = track.size();
+					for (; checked < size; checked++) {
+						if (track.getLat(checked) != checked || track.getTime(checked) != checked + 1L) {
+							failure.compareAndSet(null, "point " + checked + " read as "
+									+ track.getLat(checked) + "/" + track.getTime(checked));
+							return;
+						}
+					}
+				}
+			}
+		};
+		reader.start();
+
+		GpxTrackPoint point = new GpxTrackPoint();
+		for (int i = 0; i < COUNT; i++) {
+			point.setLat(i);
+			point.setTime(i + 1L);
+			track.stage(point);
+			track.publish();
+		}
+		reader.join();
+
+		assertNull(failure.get(), failure.get());
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SlotRingTest {
+
+	private static final long COUNT = 5000000;
+
+	// Two fields written separately so a torn handover shows up as a mismatch
+	static final class Slot {
+		long sequence;
+		long check;
+	}
+
+	private static final SlotRing.Factory<Slot> FACTORY = new SlotRing.Factory<Slot>() {
+		@Override
+		public Slot create() {
+			return new Slot();
+		}
+	};
+
+	@Test
+	public void capacityIsRoundedUpToPowerOfTwo() {
+		assertEquals(2, new SlotRing<Slot>(2, FACTORY).capacity());
+		assertEquals(8, new SlotRing<Slot>(5, FACTORY).capacity());
+		assertEquals(8, new SlotRing<Slot>(8, FACTORY).capacity());
+		assertEquals(16, new SlotRing<Slot>(9, FACTORY).capacity());
+	}
+
+	@Test
+	public void fullAndEmpty() {
+		SlotRing<Slot> ring = new SlotRing<Slot>(4, FACTORY);
+		assertNull(ring.peek());
+
+		for (int i = 0; i < 4; i++) {
+			Slot slot = ring.claim();
+			assertNotNull(slot);
+			assertSame(slot, ring.claim());
+			slot.sequence = i;
+			ring.publish();
+		}
+		assertNull(ring.claim());
+		assertEquals(4, ring.size());
+
+		assertEquals(2, ring.peek(2).sequence);
+		assertNull(ring.peek(4));
+		assertEquals(0, ring.peek().sequence);
+		ring.release();
+		assertNotNull(ring.claim());
+		assertEquals(1, ring.peek().sequence);
+	}
+
+	@Test(timeout = 60000)
+	public void concurrentProducerAndConsumerKeepOrder() throws Exception {
+		// Small ring so both threads keep running into full and empty
+		final SlotRing<Slot> ring = new SlotRing<Slot>(8, FACTORY);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		Thread producer = new Thread("producer") {
+			@Override
+			public void run() {
+				for (long i = 0; i < COUNT; i++) {
+					Slot slot;
+					while ((slot = ring.claim()) == null)
+						Thread.yield();
+					slot.sequence = i;
+					slot.check = ~i;
+					ring.publish();
+				}
+			}
+		};
+
+		Thread consumer = new Thread("consumer") {
+			@Override
+			public void run() {
+				long expected = 0;
+				while (expected < COUNT) {
+					Slot slot = ring.peek();
+					if (slot == null) {
+						Thread.yield();
+						continue;
+					}
+
+					// A look ahead must see the same sequence the next peek does
+					Slot next = ring.peek(1);
+					long sequence = slot.sequence;
+					if (sequence != expected || slot.check != ~sequence) {
+						failure.compareAndSet(null, "expected " + expected + " got " + sequence + "/" + ~slot.check);
+						return;
+					}
+					if (next != null && next.sequence != expected + 1) {
+						failure.compareAndSet(null, "look ahead from " + expected + " got " + next.sequence);
+						return;
+					}
+					ring.release();
+					expected++;
+				}
+			}
+		};
+
+		consumer.start();
+		producer.start();
+		producer.join();
+		consumer.join();
+
+		assertNull(failure.get(), failure.get());
+		assertNull(ring.peek());
+		assertEquals(0, ring.size());
+	}
+
+}